@@ -0,0 +1,176 @@
+package com.barong.web.tomcat.util.http;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Stops classifying user-agents while incompatible clients are (almost) absent from the traffic.
+ * <br>
+ * <br>A share ({@code sampleRate}) of the classified requests is recorded in a sliding window of
+ * 10 time buckets. When a bucket is rolled over and the window holds enough samples:
+ * <br>- an incompatible rate below {@code threshold} switches to bypass: SameSite=None is emitted
+ * without classification, except for sampled requests which are still classified and recorded;
+ * <br>- an incompatible rate above twice the {@code threshold} switches back to full checks.
+ * <br>Every switch is logged, the state is available through JMX ({@link AdaptiveUserAgentCheckMBean}).
+ */
+final class AdaptiveUserAgentCheck implements AdaptiveUserAgentCheckMBean {
+
+    private static final Log log = LogFactory.getLog(AdaptiveUserAgentCheck.class);
+
+    private static final int BUCKETS = 10;
+
+    static final long MIN_SAMPLES = 1000;
+
+    private final double sampleRate;
+
+    private final double threshold;
+
+    private final long bucketMillis;
+
+    private final LongSupplier clock;
+
+    private final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<>(BUCKETS);
+
+    private final AtomicBoolean bypassing = new AtomicBoolean();
+
+    private final LongAdder modeSwitchCount = new LongAdder();
+
+    private volatile double incompatibleRate;
+
+    private volatile long windowSampleCount;
+
+    AdaptiveUserAgentCheck(double sampleRate, double threshold, int windowSeconds) {
+        this(sampleRate, threshold, windowSeconds, System::currentTimeMillis);
+    }
+
+    AdaptiveUserAgentCheck(double sampleRate, double threshold, int windowSeconds, LongSupplier clock) {
+        if (sampleRate <= 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("sampleRate must be in (0, 1]: " + sampleRate);
+        }
+        if (threshold <= 0 || threshold >= 1) {
+            throw new IllegalArgumentException("threshold must be in (0, 1): " + threshold);
+        }
+        if (windowSeconds < BUCKETS) {
+            throw new IllegalArgumentException("window must be at least " + BUCKETS + " seconds: " + windowSeconds);
+        }
+        this.sampleRate = sampleRate;
+        this.threshold = threshold;
+        this.bucketMillis = windowSeconds * 1000L / BUCKETS;
+        this.clock = clock;
+    }
+
+    /**
+     * @return true if this request does not need a user-agent check
+     */
+    boolean bypass() {
+        return bypassing.get() && !sampled();
+    }
+
+    /**
+     * Records the verdict of a classified request. While bypassing only sampled requests are
+     * classified, so all of them are recorded.
+     */
+    void record(boolean incompatible) {
+        if (!bypassing.get() && !sampled()) {
+            return;
+        }
+        long epoch = clock.getAsLong() / bucketMillis;
+        int slot = (int) (epoch % BUCKETS);
+        Bucket bucket = buckets.get(slot);
+        if (bucket == null || bucket.epoch < epoch) {
+            // A new bucket is swapped in rather than reset, so no concurrent count is lost
+            Bucket next = new Bucket(epoch);
+            if (buckets.compareAndSet(slot, bucket, next)) {
+                // This thread owns the roll over
+                evaluate(epoch);
+                bucket = next;
+            } else {
+                bucket = buckets.get(slot);
+            }
+        }
+        bucket.samples.increment();
+        if (incompatible) {
+            bucket.incompatible.increment();
+        }
+    }
+
+    private void evaluate(long epoch) {
+        long samples = 0;
+        long incompatible = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            Bucket bucket = buckets.get(i);
+            if (bucket != null && bucket.epoch > epoch - BUCKETS && bucket.epoch < epoch) {
+                samples += bucket.samples.sum();
+                incompatible += bucket.incompatible.sum();
+            }
+        }
+        windowSampleCount = samples;
+        if (samples < MIN_SAMPLES) {
+            return;
+        }
+        double rate = (double) incompatible / samples;
+        incompatibleRate = rate;
+        if (rate < threshold && bypassing.compareAndSet(false, true)) {
+            modeSwitchCount.increment();
+            log.info("SameSite user-agent check bypassed: incompatible rate " + rate + " of " + samples +
+                    " samples is below " + threshold);
+        } else if (rate > 2 * threshold && bypassing.compareAndSet(true, false)) {
+            modeSwitchCount.increment();
+            log.info("SameSite user-agent check restored: incompatible rate " + rate + " of " + samples +
+                    " samples is above " + 2 * threshold);
+        }
+    }
+
+    private boolean sampled() {
+        return sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    @Override
+    public boolean isBypassing() {
+        return bypassing.get();
+    }
+
+    @Override
+    public double getIncompatibleRate() {
+        return incompatibleRate;
+    }
+
+    @Override
+    public long getWindowSampleCount() {
+        return windowSampleCount;
+    }
+
+    @Override
+    public long getModeSwitchCount() {
+        return modeSwitchCount.sum();
+    }
+
+    @Override
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public double getThreshold() {
+        return threshold;
+    }
+
+    private static final class Bucket {
+
+        final long epoch;
+
+        final LongAdder samples = new LongAdder();
+
+        final LongAdder incompatible = new LongAdder();
+
+        Bucket(long epoch) {
+            this.epoch = epoch;
+        }
+    }
+}
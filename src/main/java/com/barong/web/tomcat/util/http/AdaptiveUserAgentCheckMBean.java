@@ -0,0 +1,28 @@
+package com.barong.web.tomcat.util.http;
+
+/**
+ * JMX view of {@link AdaptiveUserAgentCheck}.
+ */
+public interface AdaptiveUserAgentCheckMBean {
+
+    /**
+     * @return true if SameSite=None is emitted without classifying the user-agent
+     */
+    boolean isBypassing();
+
+    /**
+     * @return share of incompatible user-agents among the samples of the current window
+     */
+    double getIncompatibleRate();
+
+    /**
+     * @return number of samples in the current window
+     */
+    long getWindowSampleCount();
+
+    long getModeSwitchCount();
+
+    double getSampleRate();
+
+    double getThreshold();
+}
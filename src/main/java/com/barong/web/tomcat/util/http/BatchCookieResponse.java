@@ -0,0 +1,107 @@
+package com.barong.web.tomcat.util.http;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.tomcat.util.http.CookieProcessor;
+
+/**
+ * Response wrapper holding back added cookies and generating all their Set-Cookie headers in one
+ * batch, see {@code generateHeaders} of the SameSite processors.
+ * <br>
+ * <br>Pending cookies are flushed before anything can commit the response (body, flushBuffer,
+ * sendError, sendRedirect) and by {@link #flushCookies()}, which the Valve or Filter creating the
+ * wrapper calls once the request is processed, e.g. with the processor of
+ * {@code request.getContext().getCookieProcessor()}.
+ */
+public class BatchCookieResponse extends HttpServletResponseWrapper {
+
+    private static final String SET_COOKIE_HEADER = "Set-Cookie";
+
+    private final CookieProcessor cookieProcessor;
+
+    private final HttpServletRequest request;
+
+    private final List<Cookie> pendingCookies = new ArrayList<>();
+
+    public BatchCookieResponse(HttpServletResponse response, CookieProcessor cookieProcessor,
+                               HttpServletRequest request) {
+        super(response);
+        this.cookieProcessor = cookieProcessor;
+        this.request = request;
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+        pendingCookies.add(cookie);
+    }
+
+    /**
+     * Adds the Set-Cookie headers of all pending cookies to the response.
+     */
+    public void flushCookies() {
+        if (pendingCookies.isEmpty()) {
+            return;
+        }
+        HttpServletResponse response = (HttpServletResponse) getResponse();
+        if (cookieProcessor instanceof SameSiteCookieAppender) {
+            for (String header : ((SameSiteCookieAppender) cookieProcessor).generateHeaders(pendingCookies, request)) {
+                response.addHeader(SET_COOKIE_HEADER, header);
+            }
+        } else {
+            for (Cookie cookie : pendingCookies) {
+                response.addHeader(SET_COOKIE_HEADER, cookieProcessor.generateHeader(cookie, request));
+            }
+        }
+        pendingCookies.clear();
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        flushCookies();
+        return super.getOutputStream();
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        flushCookies();
+        return super.getWriter();
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        flushCookies();
+        super.flushBuffer();
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        flushCookies();
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        flushCookies();
+        super.sendError(sc);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        flushCookies();
+        super.sendRedirect(location);
+    }
+
+    @Override
+    public void reset() {
+        pendingCookies.clear();
+        super.reset();
+    }
+}
@@ -0,0 +1,57 @@
+package com.barong.web.tomcat.util.http;
+
+/**
+ * Reads 8 bytes of a byte array as one long, for word-at-a-time (SWAR) scanning and comparison of headers.
+ * <br>
+ * <br>Little-endian: the byte at the given index is the lowest byte of the word. This version
+ * assembles the word byte by byte, the multi-release jar holds a VarHandle based one for Java 17
+ * and later (src/main/java17).
+ */
+final class ByteWords {
+
+    private ByteWords() {
+    }
+
+    /**
+     * @return true if {@link #get(byte[], int)} is a single load. It is not in this version, so
+     * scanning a word costs more than testing its bytes one by one in a table
+     */
+    static boolean isSingleLoad() {
+        return false;
+    }
+
+    /**
+     * @return bytes[i] to bytes[i + 7] as a little-endian long
+     */
+    static long get(byte[] bytes, int i) {
+        return (bytes[i] & 0xffL) |
+                (bytes[i + 1] & 0xffL) << 8 |
+                (bytes[i + 2] & 0xffL) << 16 |
+                (bytes[i + 3] & 0xffL) << 24 |
+                (bytes[i + 4] & 0xffL) << 32 |
+                (bytes[i + 5] & 0xffL) << 40 |
+                (bytes[i + 6] & 0xffL) << 48 |
+                (long) bytes[i + 7] << 56;
+    }
+
+    /**
+     * @return true if bytes[off] to bytes[off + len - 1] equal the whole expected array
+     */
+    static boolean equals(byte[] expected, byte[] bytes, int off, int len) {
+        if (expected.length != len) {
+            return false;
+        }
+        int i = 0;
+        for (; i + 8 <= len; i += 8) {
+            if (get(expected, i) != get(bytes, off + i)) {
+                return false;
+            }
+        }
+        for (; i < len; i++) {
+            if (expected[i] != bytes[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
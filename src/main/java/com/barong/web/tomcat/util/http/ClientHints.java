@@ -0,0 +1,140 @@
+package com.barong.web.tomcat.util.http;
+
+/**
+ * Allocation free reader of the {@code Sec-CH-UA} structured header (RFC 8941 list of strings with parameters), e.g.
+ * <br>{@code " Not A;Brand";v="99", "Chromium";v="92", "Google Chrome";v="92"}
+ * <br>
+ * <br>Only Chromium based browsers send user-agent client hints. The WebKit SameSite bug concerns
+ * Safari and embedded browsers only, so the Chromium brand version is all the verdict needs;
+ * the platform version hints are not read.
+ */
+final class ClientHints {
+
+    private static final String CHROMIUM_BRAND = "Chromium";
+
+    private ClientHints() {
+    }
+
+    /**
+     * @return SameSite=None verdict for the client hints header, null if it is missing, malformed
+     * or has no Chromium brand and the user-agent has to be classified instead
+     */
+    static Boolean isSameSiteNoneIncompatible(CharSequence secChUa) {
+        if (secChUa == null) {
+            return null;
+        }
+        int version = chromiumMajorVersion(secChUa);
+        if (version < 0) {
+            return null;
+        }
+        return version >= 51 && version < 67 ? Boolean.TRUE : Boolean.FALSE;
+    }
+
+    /**
+     * @return major version of the "Chromium" brand or -1 if it is missing or the header is malformed
+     */
+    static int chromiumMajorVersion(CharSequence value) {
+        int len = value.length();
+        int pos = 0;
+        while (true) {
+            pos = skipWhitespace(value, pos);
+            if (pos >= len || value.charAt(pos) != '"') {
+                return -1;
+            }
+            // Brand string, compared with "Chromium" while it is read
+            pos++;
+            int matched = 0;
+            boolean chromium = true;
+            while (true) {
+                if (pos >= len) {
+                    return -1;
+                }
+                char c = value.charAt(pos++);
+                if (c == '"') {
+                    break;
+                }
+                if (c == '\\') {
+                    if (pos >= len) {
+                        return -1;
+                    }
+                    c = value.charAt(pos++);
+                }
+                chromium = chromium && matched < CHROMIUM_BRAND.length() && CHROMIUM_BRAND.charAt(matched++) == c;
+            }
+            chromium = chromium && matched == CHROMIUM_BRAND.length();
+
+            // Parameters
+            while (pos < len && value.charAt(pos) == ';') {
+                pos++;
+                while (pos < len && value.charAt(pos) == ' ') {
+                    pos++;
+                }
+                int keyStart = pos;
+                while (pos < len && isKeyChar(value.charAt(pos))) {
+                    pos++;
+                }
+                if (pos == keyStart) {
+                    return -1;
+                }
+                boolean versionKey = pos - keyStart == 1 && value.charAt(keyStart) == 'v';
+                if (pos < len && value.charAt(pos) == '=') {
+                    pos++;
+                    boolean quoted = pos < len && value.charAt(pos) == '"';
+                    if (quoted) {
+                        pos++;
+                    }
+                    if (chromium && versionKey) {
+                        return parseMajor(value, pos);
+                    }
+                    while (pos < len && (quoted ? value.charAt(pos) != '"' :
+                            value.charAt(pos) != ';' && value.charAt(pos) != ',')) {
+                        if (quoted && value.charAt(pos) == '\\') {
+                            pos++;
+                        }
+                        pos++;
+                    }
+                    if (quoted) {
+                        if (pos >= len) {
+                            return -1;
+                        }
+                        pos++;
+                    }
+                }
+            }
+
+            pos = skipWhitespace(value, pos);
+            if (pos >= len) {
+                return -1;
+            }
+            if (value.charAt(pos) != ',') {
+                return -1;
+            }
+            pos++;
+        }
+    }
+
+    private static int parseMajor(CharSequence value, int pos) {
+        int len = value.length();
+        int version = 0;
+        int start = pos;
+        while (pos < len && value.charAt(pos) >= '0' && value.charAt(pos) <= '9') {
+            if (version > 99999) {
+                return -1;
+            }
+            version = version * 10 + value.charAt(pos++) - '0';
+        }
+        return pos == start ? -1 : version;
+    }
+
+    private static int skipWhitespace(CharSequence value, int pos) {
+        int len = value.length();
+        while (pos < len && (value.charAt(pos) == ' ' || value.charAt(pos) == '\t')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isKeyChar(char c) {
+        return c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '_' || c == '-' || c == '.' || c == '*';
+    }
+}
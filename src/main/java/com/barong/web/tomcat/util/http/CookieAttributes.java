@@ -0,0 +1,81 @@
+package com.barong.web.tomcat.util.http;
+
+import java.util.function.Consumer;
+
+/**
+ * Bounded cache of validated cookie attribute values (domain, path), rendered with their
+ * attribute name, e.g. {@code "; Path=/app"}.
+ * <br>
+ * <br>Applications use a handful of domains and paths, so a header appends the cached rendering
+ * instead of checking every character again. Invalid values are cached too, with the message of
+ * the exception they raised.
+ * <br>
+ * <br>Direct-mapped: an entry replaces whatever occupied its slot, the last one wins on races.
+ */
+final class CookieAttributes {
+
+    static final int DEFAULT_SIZE = 64;
+
+    private final String attribute;
+
+    private final Consumer<String> validator;
+
+    private final ReferenceSlots<Entry> entries;
+
+    private final int mask;
+
+    /**
+     * @param attribute rendered before the value, e.g. {@code "; Path="}
+     * @param validator throws IllegalArgumentException for an invalid value
+     */
+    CookieAttributes(String attribute, Consumer<String> validator, int size) {
+        this.attribute = attribute;
+        this.validator = validator;
+        int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        entries = new ReferenceSlots<>(capacity);
+        mask = capacity - 1;
+    }
+
+    /**
+     * Appends the rendered attribute
+     *
+     * @throws IllegalArgumentException if the value is invalid
+     */
+    void append(StringBuilder sb, String value) {
+        int h = value.hashCode();
+        int slot = (h ^ (h >>> 16)) & mask;
+        Entry entry = entries.get(slot);
+        if (entry == null || !entry.value.equals(value)) {
+            entry = create(value);
+            entries.lazySet(slot, entry);
+        }
+        if (entry.error != null) {
+            throw new IllegalArgumentException(entry.error);
+        }
+        sb.append(entry.rendered);
+    }
+
+    private Entry create(String value) {
+        try {
+            validator.accept(value);
+        } catch (IllegalArgumentException e) {
+            return new Entry(value, null, e.getMessage());
+        }
+        return new Entry(value, attribute + value, null);
+    }
+
+    private static final class Entry {
+
+        final String value;
+
+        final String rendered;
+
+        final String error;
+
+        Entry(String value, String rendered, String error) {
+            this.value = value;
+            this.rendered = rendered;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.barong.web.tomcat.util.http;
+
+/**
+ * Limits on the work done parsing the Cookie headers of one request, so crafted headers can not
+ * blow up the latency: number of cookies, length of a cookie (name and value), and header bytes
+ * scanned. -1 disables a limit.
+ * <br>
+ * <br>Once the cookie count or byte limit is reached the parser stops, the cookies found so far
+ * are kept. A cookie exceeding the length limit is skipped before its value is unescaped.
+ */
+final class CookieBudget {
+
+    static final int COOKIE_COUNT = 1;
+    static final int COOKIE_LENGTH = 2;
+    static final int HEADER_BYTES = 4;
+
+    private final int maxCookieLength;
+
+    private int remainingCookies;
+
+    private int remainingBytes;
+
+    // Limits exceeded, see COOKIE_COUNT, COOKIE_LENGTH and HEADER_BYTES
+    private int exceeded;
+
+    private boolean exhausted;
+
+    CookieBudget(int maxCookies, int maxCookieLength, int maxBytes) {
+        this.remainingCookies = maxCookies;
+        this.maxCookieLength = maxCookieLength;
+        this.remainingBytes = maxBytes;
+    }
+
+    /**
+     * @return true if no more cookie may be parsed
+     */
+    boolean isExhausted() {
+        return exhausted;
+    }
+
+    /**
+     * @return limits exceeded so far, 0 if none
+     */
+    int getExceeded() {
+        return exceeded;
+    }
+
+    /**
+     * Takes the bytes, or chars, of a header from the budget
+     *
+     * @return number of bytes of the header to parse: all of them, or up to the last cookie
+     * separator that fits in the budget
+     */
+    int header(CookieHeaderText text, int off, int len) {
+        if (remainingBytes < 0) {
+            return len;
+        }
+        if (len <= remainingBytes) {
+            remainingBytes -= len;
+            return len;
+        }
+        int end = off + remainingBytes;
+        while (end > off && text.at(end - 1) != ';' && text.at(end - 1) != ',') {
+            end--;
+        }
+        remainingBytes = 0;
+        exceeded |= HEADER_BYTES;
+        exhausted = true;
+        return end - off;
+    }
+
+    /**
+     * Takes a cookie from the budget
+     *
+     * @return true if the cookie may be added
+     */
+    boolean cookie(int nameLength, int valueLength) {
+        if (maxCookieLength >= 0 && nameLength + valueLength > maxCookieLength) {
+            exceeded |= COOKIE_LENGTH;
+            return false;
+        }
+        if (remainingCookies == 0) {
+            exceeded |= COOKIE_COUNT;
+            exhausted = true;
+            return false;
+        }
+        if (remainingCookies > 0) {
+            remainingCookies--;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if a header and its cookies, known to be within the length limit, fit in the budget
+     */
+    boolean fits(int len, int cookies) {
+        return (remainingBytes < 0 || len <= remainingBytes) && (remainingCookies < 0 || cookies <= remainingCookies);
+    }
+
+    /**
+     * Takes a header found in the cache from the budget, see {@link #fits(int, int)}
+     */
+    void consume(int len, int cookies) {
+        if (remainingBytes >= 0) {
+            remainingBytes -= len;
+        }
+        if (remainingCookies >= 0) {
+            remainingCookies -= cookies;
+        }
+    }
+}
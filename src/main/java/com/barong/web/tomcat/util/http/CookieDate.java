@@ -0,0 +1,108 @@
+package com.barong.web.tomcat.util.http;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.tomcat.util.buf.ByteChunk;
+
+/**
+ * Renders cookie Expires dates in the Netscape format used by
+ * {@code CookieProcessorBase.COOKIE_DATE_FORMAT} ({@code EEE, dd-MMM-yyyy HH:mm:ss z} in GMT)
+ * straight into a StringBuilder, so neither a DateFormat nor its StringBuffer is needed.
+ * <br>
+ * <br>Cookies usually share a few Max-Age values, the Expires date rendered for a Max-Age is kept
+ * until the clock moves to the next second. The first thread seeing the new second renders and
+ * publishes it, the others append the cached characters (or bytes).
+ */
+final class CookieDate {
+
+    private static final int CACHE_SIZE = 32;
+
+    private static final ReferenceSlots<Expires> CACHE = new ReferenceSlots<>(CACHE_SIZE);
+
+    private static final String[] DAYS = {"Thu", "Fri", "Sat", "Sun", "Mon", "Tue", "Wed"};
+
+    private static final String[] MONTHS =
+            {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+
+    private CookieDate() {
+    }
+
+    /**
+     * Appends the Expires date of a cookie with the given Max-Age.
+     */
+    static void appendExpires(StringBuilder sb, long nowMillis, int maxAge) {
+        sb.append(expires(nowMillis, maxAge).rendered);
+    }
+
+    /**
+     * Same as {@link #appendExpires(StringBuilder, long, int)} for headers written as ISO-8859-1 bytes.
+     */
+    static void appendExpires(ByteChunk bc, long nowMillis, int maxAge) {
+        HeaderBytes.append(bc, expires(nowMillis, maxAge).bytes);
+    }
+
+    private static Expires expires(long nowMillis, int maxAge) {
+        long second = Math.floorDiv(nowMillis, 1000L);
+        int slot = (maxAge ^ (maxAge >>> 16)) & (CACHE_SIZE - 1);
+        Expires expires = CACHE.get(slot);
+        if (expires == null || expires.second != second || expires.maxAge != maxAge) {
+            StringBuilder sb = new StringBuilder(32);
+            appendExpires(sb, nowMillis + maxAge * 1000L);
+            expires = new Expires(maxAge, second, sb.toString());
+            CACHE.lazySet(slot, expires);
+        }
+        return expires;
+    }
+
+    static void appendExpires(StringBuilder sb, long epochMillis) {
+        long days = Math.floorDiv(epochMillis, MILLIS_PER_DAY);
+        int secondOfDay = (int) (Math.floorMod(epochMillis, MILLIS_PER_DAY) / 1000);
+
+        // Civil date from days since 1970-01-01 (proleptic Gregorian), see java.time.LocalDate.ofEpochDay
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097L);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+        int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        sb.append(DAYS[(int) Math.floorMod(days, 7L)]).append(", ");
+        appendTwoDigits(sb, day);
+        sb.append('-').append(MONTHS[month - 1]).append('-');
+        sb.append(year);
+        sb.append(' ');
+        appendTwoDigits(sb, secondOfDay / 3600);
+        sb.append(':');
+        appendTwoDigits(sb, secondOfDay / 60 % 60);
+        sb.append(':');
+        appendTwoDigits(sb, secondOfDay % 60);
+        sb.append(" GMT");
+    }
+
+    private static void appendTwoDigits(StringBuilder sb, int value) {
+        sb.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+
+    private static final class Expires {
+
+        final int maxAge;
+
+        final long second;
+
+        final char[] rendered;
+
+        final byte[] bytes;
+
+        Expires(int maxAge, long second, String rendered) {
+            this.maxAge = maxAge;
+            this.second = second;
+            this.rendered = rendered.toCharArray();
+            this.bytes = rendered.getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.barong.web.tomcat.util.http;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of parsed Cookie headers. A browser sends the same Cookie header with request
+ * after request (assets, keep-alive and HTTP/2 connections), a hit replays the recorded cookie
+ * offsets over the new header bytes instead of parsing them again.
+ * <br>
+ * <br>Keyed by a seeded 64-bit hash ({@link UserAgentHash}) and verified against a copy of the
+ * header, so a collision only costs a parse. Headers longer than {@link #MAX_HEADER_LENGTH}
+ * bytes are not cached, nor are headers holding invalid cookies, so that these are logged every time.
+ * <br>
+ * <br>Direct-mapped: an entry replaces whatever occupied its slot, the last one wins on races.
+ */
+final class CookieHeaderCache {
+
+    static final int MAX_HEADER_LENGTH = 8192;
+
+    private final ReferenceSlots<Entry> entries;
+
+    private final int mask;
+
+    private final LongAdder hitCount = new LongAdder();
+
+    private final LongAdder missCount = new LongAdder();
+
+    /**
+     * @param size number of cached headers, rounded up to a power of two
+     */
+    CookieHeaderCache(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive: " + size);
+        }
+        int capacity = FrequencySketch.tableSizeFor(size);
+        entries = new ReferenceSlots<>(capacity);
+        mask = capacity - 1;
+    }
+
+    static long hash(byte[] bytes, int off, int len) {
+        return UserAgentHash.hash(bytes, off, len);
+    }
+
+    /**
+     * @return layout recorded for identical header bytes, null if none. Neither a hit nor a miss
+     * is counted: the caller may still parse the header, see {@link #hit()} and {@link #miss()}
+     */
+    int[] get(long hash, byte[] bytes, int off, int len) {
+        Entry entry = entries.get(slot(hash));
+        if (entry != null && entry.hash == hash && ByteWords.equals(entry.header, bytes, off, len)) {
+            return entry.layout;
+        }
+        return null;
+    }
+
+    /**
+     * Counts a header whose recorded layout was replayed
+     */
+    void hit() {
+        hitCount.increment();
+    }
+
+    /**
+     * Counts a header that was parsed, whether it was not found or its layout could not be replayed
+     */
+    void miss() {
+        missCount.increment();
+    }
+
+    void put(long hash, byte[] bytes, int off, int len, int[] layout) {
+        if (len > MAX_HEADER_LENGTH) {
+            return;
+        }
+        byte[] header = new byte[len];
+        System.arraycopy(bytes, off, header, 0, len);
+        entries.lazySet(slot(hash), new Entry(hash, header, layout));
+    }
+
+    void clear() {
+        for (int i = 0; i < entries.length(); i++) {
+            entries.set(i, null);
+        }
+    }
+
+    int getSize() {
+        return mask + 1;
+    }
+
+    long getHitCount() {
+        return hitCount.sum();
+    }
+
+    long getMissCount() {
+        return missCount.sum();
+    }
+
+    private int slot(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private static final class Entry {
+
+        final long hash;
+
+        final byte[] header;
+
+        final int[] layout;
+
+        Entry(long hash, byte[] header, int[] layout) {
+            this.hash = hash;
+            this.header = header;
+            this.layout = layout;
+        }
+    }
+}
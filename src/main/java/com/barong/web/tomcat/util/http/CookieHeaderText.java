@@ -0,0 +1,125 @@
+package com.barong.web.tomcat.util.http;
+
+/**
+ * Cookie header read by the parser of {@link SameSiteLegacyCookieProcessor}: ISO-8859-1 bytes
+ * (HTTP/1.1) or chars (HTTP/2), so both go through the same state machine.
+ * <br>
+ * <br>Characters above 0xff read as the '?' that ISO-8859-1 encoding would give, so a char header
+ * parses exactly as its bytes would. Byte headers can also be scanned 8 bytes at a time where
+ * {@link ByteWords} reads a word in a single load, that is on Java 17 and later.
+ */
+abstract class CookieHeaderText {
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+    private static final long LOWS = 0x7f7f7f7f7f7f7f7fL;
+
+    static CookieHeaderText of(byte[] bytes) {
+        return new Bytes(bytes);
+    }
+
+    static CookieHeaderText of(CharSequence chars) {
+        return new Chars(chars);
+    }
+
+    /**
+     * @return the byte or char at the position, from 0 to 0xff
+     */
+    abstract int at(int pos);
+
+    /**
+     * @return true if the 8 bytes from the position are known to be letters, digits or one of "+-._"
+     */
+    boolean isTokenWord(int pos) {
+        return false;
+    }
+
+    /**
+     * @return true if the 8 bytes from the position are known to hold no quote nor backslash
+     */
+    boolean isPlainWord(int pos) {
+        return false;
+    }
+
+    /**
+     * @return true if the chars from start to end equal s
+     */
+    final boolean equals(String s, int start, int end) {
+        int len = end - start;
+        if (len != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (at(start + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Bytes extends CookieHeaderText {
+
+        private final byte[] bytes;
+
+        Bytes(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        int at(int pos) {
+            return bytes[pos] & 0xff;
+        }
+
+        @Override
+        boolean isTokenWord(int pos) {
+            if (!ByteWords.isSingleLoad()) {
+                return false;
+            }
+            long word = ByteWords.get(bytes, pos);
+            long tokenBytes = between(word, '0' - 1, '9' + 1) | between(word, 'A' - 1, 'Z' + 1) |
+                    between(word, 'a' - 1, 'z' + 1) | between(word, ',', '/') |
+                    between(word, '*', ',') | between(word, '^', '`');
+            return tokenBytes == HIGHS;
+        }
+
+        @Override
+        boolean isPlainWord(int pos) {
+            if (!ByteWords.isSingleLoad()) {
+                return false;
+            }
+            long word = ByteWords.get(bytes, pos);
+            return !hasByte(word, '"') && !hasByte(word, '\\');
+        }
+
+        /**
+         * @return the high bit of every byte of the word greater than m and less than n set, other bits clear
+         */
+        private static long between(long word, int m, int n) {
+            long low = word & LOWS;
+            return (ONES * (127 + n) - low & ~word & low + ONES * (127 - m)) & HIGHS;
+        }
+
+        /**
+         * @return true if a byte of the word equals b
+         */
+        private static boolean hasByte(long word, int b) {
+            long x = word ^ (ONES * b);
+            return ~((x & LOWS) + LOWS | x | LOWS) != 0;
+        }
+    }
+
+    private static final class Chars extends CookieHeaderText {
+
+        private final CharSequence chars;
+
+        Chars(CharSequence chars) {
+            this.chars = chars;
+        }
+
+        @Override
+        int at(int pos) {
+            char c = chars.charAt(pos);
+            return c <= 0xff ? c : '?';
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package com.barong.web.tomcat.util.http;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.CharChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.http.ServerCookie;
+import org.apache.tomcat.util.http.ServerCookies;
+
+/**
+ * Cookies found in a Cookie header by the parser of {@link SameSiteLegacyCookieProcessor}.
+ * <br>
+ * <br>Written straight into ServerCookies, as the container expects, and/or recorded as offsets
+ * in one int[] over the header bytes. Recorded cookies are not copied nor unescaped until their
+ * value is asked for, so looking one cookie up costs a scan of the header and nothing per other
+ * cookie. A recorded layout can also be replayed into ServerCookies for an identical header
+ * ({@link CookieHeaderCache}).
+ * <br>
+ * <br>Headers given as chars (HTTP/2) are indexed the same way, characters above 0xff standing for
+ * the '?' that ISO-8859-1 encoding would give.
+ */
+final class CookieIndex {
+
+    static final int QUOTED = 1;
+    private static final int HAS_PATH = 2;
+    private static final int HAS_DOMAIN = 4;
+
+    private static final int NAME_START = 0;
+    private static final int NAME_END = 1;
+    private static final int VALUE_START = 2;
+    private static final int VALUE_END = 3;
+    private static final int PATH_START = 4;
+    private static final int PATH_END = 5;
+    private static final int DOMAIN_START = 6;
+    private static final int DOMAIN_END = 7;
+    private static final int VERSION = 8;
+    private static final int FLAGS = 9;
+    private static final int STRIDE = 10;
+
+    private final ServerCookies serverCookies;
+
+    private ServerCookie current;
+
+    private byte[] bytes;
+
+    private CharSequence chars;
+
+    private int[] index;
+
+    private int count;
+
+    private boolean invalid;
+
+    private CookieIndex(ServerCookies serverCookies, boolean recording) {
+        this.serverCookies = serverCookies;
+        if (recording) {
+            index = new int[STRIDE * 8];
+        }
+    }
+
+    /**
+     * @return index adding every cookie to serverCookies as soon as it is parsed
+     */
+    static CookieIndex into(ServerCookies serverCookies) {
+        return new CookieIndex(serverCookies, false);
+    }
+
+    /**
+     * @return index adding every cookie to serverCookies and recording its offsets
+     */
+    static CookieIndex recording(ServerCookies serverCookies) {
+        return new CookieIndex(serverCookies, true);
+    }
+
+    /**
+     * @return index recording offsets only
+     */
+    static CookieIndex offsets() {
+        return new CookieIndex(null, true);
+    }
+
+    /**
+     * Starts a Cookie header, forgetting the offsets recorded for the previous one
+     */
+    void header(byte[] bytes) {
+        this.bytes = bytes;
+        chars = null;
+        current = null;
+        count = 0;
+        invalid = false;
+    }
+
+    /**
+     * Starts a Cookie header given as chars, see {@link #header(byte[])}
+     */
+    void header(CharSequence chars) {
+        this.chars = chars;
+        bytes = null;
+        current = null;
+        count = 0;
+        invalid = false;
+    }
+
+    /**
+     * @param valueStart -1 for a name only cookie
+     */
+    void add(int nameStart, int nameEnd, int valueStart, int valueEnd, int version, int flags) {
+        if (serverCookies != null) {
+            ServerCookie sc = serverCookies.addCookie();
+            sc.setVersion(version);
+            set(sc.getName(), nameStart, nameEnd);
+            if (valueStart == -1) {
+                sc.getValue().setString("");
+            } else if (bytes == null) {
+                if ((flags & QUOTED) != 0) {
+                    sc.getValue().setString(unescapeDoubleQuotes(text(valueStart, valueEnd)));
+                } else {
+                    set(sc.getValue(), valueStart, valueEnd);
+                }
+            } else {
+                sc.getValue().setBytes(bytes, valueStart, valueEnd - valueStart);
+                if ((flags & QUOTED) != 0) {
+                    // We know this is a byte value so this is safe
+                    unescapeDoubleQuotes(sc.getValue().getByteChunk());
+                }
+            }
+            current = sc;
+        }
+        if (index == null) {
+            return;
+        }
+        if ((count + 1) * STRIDE > index.length) {
+            index = Arrays.copyOf(index, index.length * 2);
+        }
+        int base = count * STRIDE;
+        index[base + NAME_START] = nameStart;
+        index[base + NAME_END] = nameEnd;
+        index[base + VALUE_START] = valueStart;
+        index[base + VALUE_END] = valueEnd;
+        index[base + PATH_START] = -1;
+        index[base + PATH_END] = -1;
+        index[base + DOMAIN_START] = -1;
+        index[base + DOMAIN_END] = -1;
+        index[base + VERSION] = version;
+        index[base + FLAGS] = flags;
+        count++;
+    }
+
+    void setDomain(int start, int end) {
+        if (serverCookies != null) {
+            set(current.getDomain(), start, end);
+        }
+        if (index != null) {
+            int base = (count - 1) * STRIDE;
+            index[base + DOMAIN_START] = start;
+            index[base + DOMAIN_END] = end;
+            index[base + FLAGS] |= HAS_DOMAIN;
+        }
+    }
+
+    void setPath(int start, int end) {
+        if (serverCookies != null) {
+            set(current.getPath(), start, end);
+        }
+        if (index != null) {
+            int base = (count - 1) * STRIDE;
+            index[base + PATH_START] = start;
+            index[base + PATH_END] = end;
+            index[base + FLAGS] |= HAS_PATH;
+        }
+    }
+
+    /**
+     * Notes an invalid cookie skipped in the current header
+     */
+    void invalid() {
+        invalid = true;
+    }
+
+    /**
+     * @return true if an invalid cookie was skipped in the current header
+     */
+    boolean hasInvalid() {
+        return invalid;
+    }
+
+    /**
+     * @return the recorded cookies, offsets made relative to off
+     */
+    int[] layout(int off) {
+        int[] layout = Arrays.copyOf(index, count * STRIDE);
+        for (int i = 0; i < layout.length; i++) {
+            // -1 marks a missing value
+            if (layout[i] != -1 && i % STRIDE != VERSION && i % STRIDE != FLAGS) {
+                layout[i] -= off;
+            }
+        }
+        return layout;
+    }
+
+    /**
+     * Adds the cookies of a layout to serverCookies, for a header identical to the recorded one
+     */
+    void replay(int[] layout, int off) {
+        for (int base = 0; base < layout.length; base += STRIDE) {
+            int flags = layout[base + FLAGS];
+            add(shift(layout[base + NAME_START], off), shift(layout[base + NAME_END], off),
+                    shift(layout[base + VALUE_START], off), shift(layout[base + VALUE_END], off),
+                    layout[base + VERSION], flags & QUOTED);
+            if ((flags & HAS_DOMAIN) != 0) {
+                setDomain(shift(layout[base + DOMAIN_START], off), shift(layout[base + DOMAIN_END], off));
+            }
+            if ((flags & HAS_PATH) != 0) {
+                setPath(shift(layout[base + PATH_START], off), shift(layout[base + PATH_END], off));
+            }
+        }
+    }
+
+    /**
+     * @return number of cookies of a layout
+     */
+    static int count(int[] layout) {
+        return layout.length / STRIDE;
+    }
+
+    private static int shift(int position, int off) {
+        return position == -1 ? -1 : position + off;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return position of the first recorded cookie with the name, -1 if none
+     */
+    int find(String name) {
+        for (int i = 0; i < count; i++) {
+            int base = i * STRIDE;
+            int start = index[base + NAME_START];
+            int length = index[base + NAME_END] - start;
+            if (length == name.length() && nameEquals(name, start, length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean nameEquals(String name, int start, int length) {
+        for (int i = 0; i < length; i++) {
+            if ((bytes == null ? latin1(chars.charAt(start + i)) : bytes[start + i]) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Unescapes and decodes the value of a recorded cookie
+     */
+    String value(int i, Charset charset) {
+        int base = i * STRIDE;
+        int start = index[base + VALUE_START];
+        if (start == -1) {
+            return "";
+        }
+        if (bytes == null) {
+            String value = text(start, index[base + VALUE_END]);
+            if ((index[base + FLAGS] & QUOTED) != 0) {
+                value = unescapeDoubleQuotes(value);
+            }
+            return charset.equals(StandardCharsets.ISO_8859_1) ? value :
+                    new String(value.getBytes(StandardCharsets.ISO_8859_1), charset);
+        }
+        ByteChunk value = new ByteChunk();
+        value.setBytes(bytes, start, index[base + VALUE_END] - start);
+        if ((index[base + FLAGS] & QUOTED) != 0) {
+            unescapeDoubleQuotes(value);
+        }
+        return new String(value.getBuffer(), value.getStart(), value.getLength(), charset);
+    }
+
+    /**
+     * Points a cookie part at the header: bytes and Latin-1 chars are not copied
+     */
+    private void set(MessageBytes mb, int start, int end) {
+        if (bytes != null) {
+            mb.setBytes(bytes, start, end - start);
+        } else if (chars instanceof CharChunk && isLatin1(start, end)) {
+            CharChunk cc = (CharChunk) chars;
+            mb.setChars(cc.getBuffer(), cc.getStart() + start, end - start);
+        } else {
+            mb.setString(text(start, end));
+        }
+    }
+
+    /**
+     * @return chars of the header, as decoded from their ISO-8859-1 encoding
+     */
+    private String text(int start, int end) {
+        String text = chars.subSequence(start, end).toString();
+        if (isLatin1(start, end)) {
+            return text;
+        }
+        return new String(text.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.ISO_8859_1);
+    }
+
+    private boolean isLatin1(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (chars.charAt(i) > 0xff) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static char latin1(char c) {
+        return c <= 0xff ? c : '?';
+    }
+
+    /**
+     * Unescapes any double quotes in the given cookie value.
+     *
+     * @param value The cookie value
+     * @return the unescaped value
+     */
+    private static String unescapeDoubleQuotes(String value) {
+        if (value.indexOf('"') == -1) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        int len = value.length();
+        for (int src = 0; src < len; src++) {
+            if (value.charAt(src) == '\\' && src + 1 < len && value.charAt(src + 1) == '"') {
+                src++;
+            }
+            sb.append(value.charAt(src));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Unescapes any double quotes in the given cookie value.
+     *
+     * @param bc The cookie value to modify
+     */
+    private static void unescapeDoubleQuotes(ByteChunk bc) {
+
+        if (bc == null || bc.getLength() == 0 || bc.indexOf('"', 0) == -1) {
+            return;
+        }
+
+        // Take a copy of the buffer so the original cookie header is not
+        // modified by this unescaping.
+        byte[] original = bc.getBuffer();
+        int len = bc.getLength();
+
+        byte[] copy = new byte[len];
+        System.arraycopy(original, bc.getStart(), copy, 0, len);
+
+        int src = 0;
+        int dest = 0;
+
+        while (src < len) {
+            if (copy[src] == '\\' && src + 1 < len && copy[src + 1] == '"') {
+                src++;
+            }
+            copy[dest] = copy[src];
+            dest ++;
+            src ++;
+        }
+        bc.setBytes(copy, 0, dest);
+    }
+}
@@ -0,0 +1,158 @@
+package com.barong.web.tomcat.util.http;
+
+import javax.servlet.http.Cookie;
+
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.CharChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.http.ServerCookie;
+import org.apache.tomcat.util.http.ServerCookies;
+
+/**
+ * Dual-cookie mode: instead of classifying the user-agent, every cookie is sent twice,
+ * once with {@code SameSite=None; Secure} and once as a legacy fallback under a suffixed name
+ * with no SameSite attribute. Incompatible clients reject or mishandle the first one and keep the second.
+ * <br>
+ * <br>On the way back both are merged into one logical cookie: a legacy cookie is renamed to its
+ * original name unless the original cookie was sent too.
+ * @see SameSiteDualCookieFilter
+ */
+final class DualCookies {
+
+    static final String DEFAULT_LEGACY_SUFFIX = "_legacy";
+
+    private DualCookies() {
+    }
+
+    static boolean isLegacyName(String name, String suffix) {
+        return name != null && name.length() > suffix.length() && name.endsWith(suffix);
+    }
+
+    static String legacyName(String name, String suffix) {
+        return name + suffix;
+    }
+
+    static Cookie legacyCookie(Cookie cookie, String suffix) {
+        Cookie legacy = new Cookie(legacyName(cookie.getName(), suffix), cookie.getValue());
+        legacy.setVersion(cookie.getVersion());
+        if (cookie.getComment() != null) {
+            legacy.setComment(cookie.getComment());
+        }
+        if (cookie.getDomain() != null) {
+            legacy.setDomain(cookie.getDomain());
+        }
+        legacy.setPath(cookie.getPath());
+        legacy.setMaxAge(cookie.getMaxAge());
+        legacy.setSecure(cookie.getSecure());
+        legacy.setHttpOnly(cookie.isHttpOnly());
+        return legacy;
+    }
+
+    /**
+     * @return cookies to parse the request headers into before {@link #merge}, the limit is enforced by the merge
+     */
+    static ServerCookies parsedCookies() {
+        ServerCookies parsed = new ServerCookies(4);
+        parsed.setLimit(-1);
+        return parsed;
+    }
+
+    /**
+     * Copies parsed cookies to the request cookies, merging every legacy cookie with its original.
+     * Names may be bytes (HTTP/1.1) or chars (HTTP/2).
+     */
+    static void merge(ServerCookies parsed, ServerCookies serverCookies, String suffix) {
+        int count = parsed.getCookieCount();
+        for (int i = 0; i < count; i++) {
+            ServerCookie cookie = parsed.getCookie(i);
+            MessageBytes name = cookie.getName();
+            int nameLength = name.getLength();
+            if (isLegacyName(name, suffix)) {
+                nameLength -= suffix.length();
+                if (contains(parsed, name, nameLength)) {
+                    continue;
+                }
+            }
+            ServerCookie target = serverCookies.addCookie();
+            target.setVersion(cookie.getVersion());
+            copy(name, target.getName(), nameLength);
+            copy(cookie.getValue(), target.getValue(), -1);
+            copy(cookie.getPath(), target.getPath(), -1);
+            copy(cookie.getDomain(), target.getDomain(), -1);
+        }
+    }
+
+    private static boolean isLegacyName(MessageBytes name, String suffix) {
+        if (name.isNull()) {
+            return false;
+        }
+        int length = name.getLength();
+        int suffixLength = suffix.length();
+        if (length <= suffixLength) {
+            return false;
+        }
+        int start = length - suffixLength;
+        for (int i = 0; i < suffixLength; i++) {
+            if (charAt(name, start + i) != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if a cookie is named after the first len characters of name
+     */
+    private static boolean contains(ServerCookies cookies, MessageBytes name, int len) {
+        int count = cookies.getCookieCount();
+        for (int i = 0; i < count; i++) {
+            MessageBytes other = cookies.getCookie(i).getName();
+            if (other.isNull() || other.getLength() != len) {
+                continue;
+            }
+            int j = 0;
+            while (j < len && charAt(other, j) == charAt(name, j)) {
+                j++;
+            }
+            if (j == len) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the i-th byte or char of a name, bytes being ISO-8859-1
+     */
+    private static int charAt(MessageBytes mb, int i) {
+        switch (mb.getType()) {
+            case MessageBytes.T_BYTES:
+                ByteChunk bc = mb.getByteChunk();
+                return bc.getBytes()[bc.getStart() + i] & 0xff;
+            case MessageBytes.T_CHARS:
+                CharChunk cc = mb.getCharChunk();
+                return cc.getBuffer()[cc.getStart() + i];
+            default:
+                return mb.toString().charAt(i);
+        }
+    }
+
+    private static void copy(MessageBytes from, MessageBytes to, int length) {
+        if (from.isNull()) {
+            return;
+        }
+        switch (from.getType()) {
+            case MessageBytes.T_BYTES:
+                ByteChunk bc = from.getByteChunk();
+                to.setBytes(bc.getBytes(), bc.getStart(), length < 0 ? bc.getLength() : length);
+                break;
+            case MessageBytes.T_CHARS:
+                CharChunk cc = from.getCharChunk();
+                to.setChars(cc.getBuffer(), cc.getStart(), length < 0 ? cc.getLength() : length);
+                break;
+            default:
+                String value = from.toString();
+                to.setString(length < 0 ? value : value.substring(0, length));
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.barong.web.tomcat.util.http;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Count-min sketch with 4-bit counters estimating how often a hash was seen recently.
+ * <br>
+ * <br>Counters are halved once the number of increments reaches ten times the maximum size,
+ * so old popularity fades away. Updates are lock-free; concurrent increments may only be
+ * lost when a counter is saturated or halved at the same moment.
+ * <br>
+ * <br>Same layout as the TinyLFU sketch of Caffeine: 16 counters per long, 4 rows per hash.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final LongSlots table;
+
+    private final int tableMask;
+
+    private final int sampleSize;
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    FrequencySketch(int maximumSize) {
+        int length = tableSizeFor(Math.max(maximumSize, 16));
+        table = new LongSlots(length);
+        tableMask = length - 1;
+        sampleSize = (int) Math.min(10L * maximumSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return estimated number of occurrences of the hash, 15 at most
+     */
+    int frequency(int hash) {
+        int start = (hash & 3) << 2;
+        int frequency = 15;
+        for (int i = 0; i < 4; i++) {
+            int offset = (start + i) << 2;
+            int count = (int) ((table.get(indexOf(hash, i)) >>> offset) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    void increment(int hash) {
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && size.incrementAndGet() == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        for (;;) {
+            long value = table.get(index);
+            if ((value & mask) == mask) {
+                return false;
+            }
+            if (table.weakCompareAndSet(index, value, value + (1L << offset))) {
+                return true;
+            }
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length(); i++) {
+            long value;
+            do {
+                value = table.get(i);
+            } while (!table.weakCompareAndSet(i, value, (value >>> 1) & RESET_MASK));
+        }
+        size.addAndGet(-(sampleSize >>> 1));
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    static int tableSizeFor(int size) {
+        int n = -1 >>> Integer.numberOfLeadingZeros(Math.max(size, 2) - 1);
+        return n >= 1 << 30 ? 1 << 30 : n + 1;
+    }
+}
@@ -0,0 +1,57 @@
+package com.barong.web.tomcat.util.http;
+
+import javax.servlet.http.Cookie;
+
+/**
+ * Per thread StringBuilder for Set-Cookie headers, so generating a header allocates only the final String.
+ * <br>Builders that grew for an unusually large cookie are not kept.
+ * <br>
+ * <br>On virtual threads, which are created per request, a per thread builder is rarely reused, so
+ * processors may ask for a new builder of the exact expected size instead.
+ */
+final class HeaderBuilder {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private static final int MAX_RETAINED_CAPACITY = 8192;
+
+    // Attribute names, separators, Expires date, SameSite and flags
+    private static final int ATTRIBUTES_LENGTH = 128;
+
+    private static final ThreadLocal<StringBuilder> BUILDER =
+            ThreadLocal.withInitial(() -> new StringBuilder(INITIAL_CAPACITY));
+
+    private HeaderBuilder() {
+    }
+
+    /**
+     * @param threadLocal false to allocate a new builder rather than using the one of the current thread
+     * @return an empty builder able to hold the header of the cookie without growing
+     */
+    static StringBuilder get(Cookie cookie, boolean threadLocal) {
+        int expectedLength = expectedLength(cookie);
+        if (!threadLocal) {
+            return new StringBuilder(expectedLength);
+        }
+        StringBuilder sb = BUILDER.get();
+        if (sb.capacity() > MAX_RETAINED_CAPACITY && expectedLength <= MAX_RETAINED_CAPACITY) {
+            sb = new StringBuilder(INITIAL_CAPACITY);
+            BUILDER.set(sb);
+        }
+        sb.setLength(0);
+        sb.ensureCapacity(expectedLength);
+        return sb;
+    }
+
+    static int expectedLength(Cookie cookie) {
+        // Quoting may escape some characters, leave room for it
+        int length = ATTRIBUTES_LENGTH + cookie.getName().length();
+        length += lengthOf(cookie.getValue()) + lengthOf(cookie.getPath()) + lengthOf(cookie.getDomain()) +
+                lengthOf(cookie.getComment());
+        return length + (length >> 3);
+    }
+
+    private static int lengthOf(String value) {
+        return value == null ? 0 : value.length();
+    }
+}
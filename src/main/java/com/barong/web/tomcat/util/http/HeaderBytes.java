@@ -0,0 +1,33 @@
+package com.barong.web.tomcat.util.http;
+
+import org.apache.tomcat.util.buf.ByteChunk;
+
+/**
+ * Writes Set-Cookie headers straight into a ByteChunk as ISO-8859-1, the way Tomcat encodes
+ * String header values: characters above 0xFF are written as '?'.
+ * <br>The chunk grows as needed, it must not have a limit.
+ */
+final class HeaderBytes {
+
+    private HeaderBytes() {
+    }
+
+    static void append(ByteChunk bc, byte[] bytes) {
+        bc.makeSpace(bytes.length);
+        int end = bc.getEnd();
+        System.arraycopy(bytes, 0, bc.getBuffer(), end, bytes.length);
+        bc.setEnd(end + bytes.length);
+    }
+
+    static void append(ByteChunk bc, CharSequence chars) {
+        int length = chars.length();
+        bc.makeSpace(length);
+        byte[] buffer = bc.getBuffer();
+        int end = bc.getEnd();
+        for (int i = 0; i < length; i++) {
+            char c = chars.charAt(i);
+            buffer[end++] = c > 0xff ? (byte) '?' : (byte) c;
+        }
+        bc.setEnd(end);
+    }
+}
@@ -0,0 +1,135 @@
+package com.barong.web.tomcat.util.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import javax.servlet.http.Cookie;
+
+import org.apache.tomcat.util.http.SameSiteCookies;
+
+/**
+ * Bounded cache of pre-rendered Set-Cookie headers, keyed on everything but the cookie value.
+ * <br>
+ * <br>A template holds the header split around the value and the Expires date:
+ * <br>{@code prefix + value + middle + [Expires date] + suffix}
+ * <br>so generating a header for a known cookie shape only checks and appends the value.
+ * <br>
+ * <br>Direct-mapped: a template replaces whatever occupied its slot, the last one wins on races.
+ */
+final class HeaderTemplates {
+
+    static final int DEFAULT_SIZE = 256;
+
+    private final ReferenceSlots<Template> templates;
+
+    private final int mask;
+
+    HeaderTemplates(int size) {
+        int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        templates = new ReferenceSlots<>(capacity);
+        mask = capacity - 1;
+    }
+
+    Template get(Cookie cookie, boolean valueNeedsQuotes, SameSiteCookies sameSite, boolean sameSiteNoneAllowed,
+                 boolean dualCookies) {
+        Template template = templates.get(slot(cookie));
+        if (template != null &&
+                template.matches(cookie, valueNeedsQuotes, sameSite, sameSiteNoneAllowed, dualCookies)) {
+            return template;
+        }
+        return null;
+    }
+
+    void put(Cookie cookie, Template template) {
+        templates.lazySet(slot(cookie), template);
+    }
+
+    void clear() {
+        for (int i = 0; i < templates.length(); i++) {
+            templates.set(i, null);
+        }
+    }
+
+    private int slot(Cookie cookie) {
+        int h = cookie.getName().hashCode();
+        h = 31 * h + Objects.hashCode(cookie.getPath());
+        h = 31 * h + Objects.hashCode(cookie.getDomain());
+        h = 31 * h + cookie.getMaxAge();
+        h ^= h >>> 16;
+        return h & mask;
+    }
+
+    static final class Template {
+
+        private final String name;
+        private final int cookieVersion;
+        private final boolean valueNeedsQuotes;
+        private final String comment;
+        private final String domain;
+        private final String path;
+        private final int maxAge;
+        private final boolean secure;
+        private final boolean httpOnly;
+        private final SameSiteCookies sameSite;
+        private final boolean sameSiteNoneAllowed;
+        private final boolean dualCookies;
+
+        /** Version used to quote the value */
+        final int version;
+
+        final String prefix;
+
+        final String middle;
+
+        /** Max-Age to render as Expires date between middle and suffix, -1 if none */
+        final int expiresMaxAge;
+
+        final String suffix;
+
+        final byte[] prefixBytes;
+
+        final byte[] middleBytes;
+
+        final byte[] suffixBytes;
+
+        Template(Cookie cookie, boolean valueNeedsQuotes, SameSiteCookies sameSite, boolean sameSiteNoneAllowed,
+                 boolean dualCookies, int version, String prefix, String middle, int expiresMaxAge,
+                 String suffix) {
+            this.name = cookie.getName();
+            this.cookieVersion = cookie.getVersion();
+            this.valueNeedsQuotes = valueNeedsQuotes;
+            this.comment = cookie.getComment();
+            this.domain = cookie.getDomain();
+            this.path = cookie.getPath();
+            this.maxAge = cookie.getMaxAge();
+            this.secure = cookie.getSecure();
+            this.httpOnly = cookie.isHttpOnly();
+            this.sameSite = sameSite;
+            this.sameSiteNoneAllowed = sameSiteNoneAllowed;
+            this.dualCookies = dualCookies;
+            this.version = version;
+            this.prefix = prefix;
+            this.middle = middle;
+            this.expiresMaxAge = expiresMaxAge;
+            this.suffix = suffix;
+            this.prefixBytes = prefix.getBytes(StandardCharsets.ISO_8859_1);
+            this.middleBytes = middle.getBytes(StandardCharsets.ISO_8859_1);
+            this.suffixBytes = suffix.getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        boolean matches(Cookie cookie, boolean valueNeedsQuotes, SameSiteCookies sameSite,
+                        boolean sameSiteNoneAllowed, boolean dualCookies) {
+            return maxAge == cookie.getMaxAge() &&
+                    cookieVersion == cookie.getVersion() &&
+                    this.valueNeedsQuotes == valueNeedsQuotes &&
+                    secure == cookie.getSecure() &&
+                    httpOnly == cookie.isHttpOnly() &&
+                    this.sameSite == sameSite &&
+                    this.sameSiteNoneAllowed == sameSiteNoneAllowed &&
+                    this.dualCookies == dualCookies &&
+                    name.equals(cookie.getName()) &&
+                    Objects.equals(path, cookie.getPath()) &&
+                    Objects.equals(domain, cookie.getDomain()) &&
+                    Objects.equals(comment, cookie.getComment());
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.barong.web.tomcat.util.http;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read-only ISO-8859-1 view of a byte range, lets the user-agent classifiers read header bytes
+ * without decoding them into a String.
+ */
+final class Latin1CharSequence implements CharSequence {
+
+    private final byte[] bytes;
+
+    private final int offset;
+
+    private final int length;
+
+    Latin1CharSequence(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+        return (char) (bytes[offset + index] & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException(start + "-" + end);
+        }
+        return new Latin1CharSequence(bytes, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+    }
+}
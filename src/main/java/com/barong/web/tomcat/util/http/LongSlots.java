@@ -0,0 +1,38 @@
+package com.barong.web.tomcat.util.http;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size array of longs updated lock-free, used by the user-agent verdict cache and its
+ * frequency sketch.
+ * <br>
+ * <br>This version is backed by an AtomicLongArray, the multi-release jar holds a VarHandle based
+ * one for Java 17 and later (src/main/java17).
+ */
+final class LongSlots {
+
+    private final AtomicLongArray slots;
+
+    LongSlots(int length) {
+        slots = new AtomicLongArray(length);
+    }
+
+    int length() {
+        return slots.length();
+    }
+
+    long get(int i) {
+        return slots.get(i);
+    }
+
+    boolean compareAndSet(int i, long expect, long update) {
+        return slots.compareAndSet(i, expect, update);
+    }
+
+    /**
+     * May fail spuriously, only for retry loops
+     */
+    boolean weakCompareAndSet(int i, long expect, long update) {
+        return slots.compareAndSet(i, expect, update);
+    }
+}
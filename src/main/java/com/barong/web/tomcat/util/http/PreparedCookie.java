@@ -0,0 +1,107 @@
+package com.barong.web.tomcat.util.http;
+
+import javax.servlet.http.Cookie;
+
+/**
+ * Cookie validated and quoted once, by {@link SameSiteLegacyCookieProcessor#prepareCookie(Cookie)},
+ * for cookies built from constants or server generated tokens. Generating its header appends the
+ * quoted value as is, no character of the cookie is checked again.
+ * <br>
+ * <br>Changing the value, path, domain, comment or version drops the prepared state, the cookie is
+ * then validated on every response like any other cookie.
+ */
+public class PreparedCookie extends Cookie {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient volatile Prepared prepared;
+
+    PreparedCookie(Cookie cookie) {
+        super(cookie.getName(), cookie.getValue());
+        super.setVersion(cookie.getVersion());
+        if (cookie.getComment() != null) {
+            super.setComment(cookie.getComment());
+        }
+        if (cookie.getDomain() != null) {
+            super.setDomain(cookie.getDomain());
+        }
+        super.setPath(cookie.getPath());
+        setMaxAge(cookie.getMaxAge());
+        setSecure(cookie.getSecure());
+        setHttpOnly(cookie.isHttpOnly());
+    }
+
+    void prepared(Object processor, int quotingConfig, int valueFlags, int version, String quotedValue) {
+        prepared = new Prepared(processor, quotingConfig, valueFlags, version, quotedValue);
+    }
+
+    /**
+     * @return the prepared state if prepared by this processor with its current quoting settings, otherwise null
+     */
+    Prepared prepared(Object processor, int quotingConfig) {
+        Prepared prepared = this.prepared;
+        if (prepared != null && prepared.processor == processor && prepared.quotingConfig == quotingConfig) {
+            return prepared;
+        }
+        return null;
+    }
+
+    @Override
+    public void setValue(String newValue) {
+        prepared = null;
+        super.setValue(newValue);
+    }
+
+    @Override
+    public void setPath(String uri) {
+        prepared = null;
+        super.setPath(uri);
+    }
+
+    @Override
+    public void setDomain(String domain) {
+        prepared = null;
+        super.setDomain(domain);
+    }
+
+    @Override
+    public void setComment(String purpose) {
+        prepared = null;
+        super.setComment(purpose);
+    }
+
+    @Override
+    public void setVersion(int v) {
+        prepared = null;
+        super.setVersion(v);
+    }
+
+    @Override
+    public Object clone() {
+        PreparedCookie clone = (PreparedCookie) super.clone();
+        clone.prepared = prepared;
+        return clone;
+    }
+
+    static final class Prepared {
+
+        final Object processor;
+
+        final int quotingConfig;
+
+        final int valueFlags;
+
+        /** Version the value was quoted for */
+        final int version;
+
+        final String quotedValue;
+
+        Prepared(Object processor, int quotingConfig, int valueFlags, int version, String quotedValue) {
+            this.processor = processor;
+            this.quotingConfig = quotingConfig;
+            this.valueFlags = valueFlags;
+            this.version = version;
+            this.quotedValue = quotedValue;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.barong.web.tomcat.util.http;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed size array of references shared between threads, used by the direct-mapped caches.
+ * <br>
+ * <br>Readers only need to see fully built, immutable entries, so reads have acquire and
+ * publications release semantics. This version is backed by an AtomicReferenceArray, the
+ * multi-release jar holds a VarHandle based one for Java 17 and later (src/main/java17).
+ */
+final class ReferenceSlots<E> {
+
+    private final AtomicReferenceArray<E> slots;
+
+    ReferenceSlots(int length) {
+        slots = new AtomicReferenceArray<>(length);
+    }
+
+    int length() {
+        return slots.length();
+    }
+
+    E get(int i) {
+        return slots.get(i);
+    }
+
+    /**
+     * Publishes an entry, other threads may see it later
+     */
+    void lazySet(int i, E value) {
+        slots.lazySet(i, value);
+    }
+
+    void set(int i, E value) {
+        slots.set(i, value);
+    }
+}
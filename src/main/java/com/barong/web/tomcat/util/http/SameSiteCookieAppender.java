@@ -1,11 +1,16 @@
 package com.barong.web.tomcat.util.http;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Collection;
+import java.util.List;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 
+import org.apache.coyote.Request;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.http.MimeHeaders;
 import org.apache.tomcat.util.http.SameSiteCookies;
 
 /**
@@ -49,6 +54,7 @@ import org.apache.tomcat.util.http.SameSiteCookies;
  * <br>           !isChromiumVersionAtLeast(major:67, useragent)
  * <br>
  * <br>// Regex parsing of User-Agent string. (See note above!)
+ * <br>// Implemented without regular expressions by UserAgentScanner.
  * <br>
  * <br>bool isIosVersion(int major, string useragent):
  * <br>    string regex = "\(iP.+; CPU .*OS (\d+)[_\d]*.*\) AppleWebKit\/"
@@ -103,54 +109,178 @@ interface SameSiteCookieAppender
     Log log = LogFactory.getLog(SameSiteCookieAppender.class);
     
     String USER_AGENT_HEADER = "user-agent";
+
+    String CLIENT_HINTS_HEADER = "sec-ch-ua";
     
-    default void appendSameSite(SameSiteCookies sameSiteCookiesValue, StringBuffer sb, HttpServletRequest request) {
+    default void appendSameSite(SameSiteCookies sameSiteCookiesValue, StringBuilder sb, HttpServletRequest request) {
         if (sameSiteCookiesValue == null) {
             throw new IllegalStateException("sameSiteCookiesValue is null");
         }
         if (sb == null) {
-            throw new IllegalStateException("StringBuffer is null");
-        }
-        if (SameSiteCookies.UNSET.equals(sameSiteCookiesValue)) {
-            log.debug("SameSiteCookies.UNSET value received.");
-            return;
+            throw new IllegalStateException("StringBuilder is null");
         }
+        appendSameSite(sameSiteCookiesValue, sb, isSameSiteNoneAllowed(sameSiteCookiesValue, request));
+    }
+
+    /**
+     * @return true if SameSite with the Secure flag can be sent in response to this request
+     */
+    default boolean isSameSiteNoneAllowed(SameSiteCookies sameSiteCookiesValue, HttpServletRequest request) {
         if (!SameSiteCookies.NONE.equals(sameSiteCookiesValue)) {
-            log.debug("SameSiteCookies will be set with value: " + sameSiteCookiesValue.getValue());
-            sb.append("; SameSite=");
-            sb.append(sameSiteCookiesValue.getValue());
+            return false;
         }
         if (request == null) {
             log.debug("SameSiteCookies.NONE will NOT be set. request is null.");
-            return;
+            return false;
         }
         if (!request.isSecure()) {
             log.debug("SameSiteCookies.NONE will NOT be set. request is not secure.");
-            return;
+            return false;
         }
         // SameSiteCookies.NONE will correctly work only with Secure flag 
         // and only for compatible clients - https://www.chromium.org/updates/same-site/incompatible-clients 
-        if (sameSiteSupportedUserAgent(request)) {
-            log.debug("SameSiteCookies.NONE will be set for compatible user-agent.");
+        return sameSiteSupportedUserAgent(request);
+    }
+
+    /**
+     * Same as {@link #appendSameSite(SameSiteCookies, StringBuilder, HttpServletRequest)} with the verdict
+     * of {@link #isSameSiteNoneAllowed(SameSiteCookies, HttpServletRequest)} already known.
+     */
+    default void appendSameSite(SameSiteCookies sameSiteCookiesValue, StringBuilder sb, boolean sameSiteNoneAllowed) {
+        appendSameSite(sameSiteCookiesValue, sb, null, sameSiteNoneAllowed);
+    }
+
+    /**
+     * Appends one SameSite attribute: the configured Lax or Strict, or None with Secure (unless the
+     * cookie already has it) when {@link #isSameSiteNoneAllowed(SameSiteCookies, HttpServletRequest)}.
+     *
+     * @param cookie cookie the header is generated for, null if its Secure flag is not known
+     */
+    default void appendSameSite(SameSiteCookies sameSiteCookiesValue, StringBuilder sb, Cookie cookie,
+                                boolean sameSiteNoneAllowed) {
+        if (SameSiteCookies.UNSET.equals(sameSiteCookiesValue)) {
+            log.debug("SameSiteCookies.UNSET value received.");
+            return;
+        }
+        if (!SameSiteCookies.NONE.equals(sameSiteCookiesValue)) {
+            log.debug("SameSiteCookies will be set with value: " + sameSiteCookiesValue.getValue());
             sb.append("; SameSite=");
             sb.append(sameSiteCookiesValue.getValue());
+            return;
+        }
+        if (sameSiteNoneAllowed) {
+            log.debug("SameSiteCookies.NONE will be set for compatible user-agent.");
+            sb.append("; SameSite=None");
+            if (cookie == null || !cookie.getSecure()) {
+                sb.append("; Secure");
+            }
+        }
+    }
+
+    /**
+     * Dual-cookie mode: the user-agent is never read, cookies get {@code SameSite=None; Secure}
+     * and their legacy copies (named with {@link #getLegacyCookieSuffix()}) no SameSite attribute.
+     * @see DualCookies
+     */
+    default void appendDualSameSite(StringBuilder sb, Cookie cookie) {
+        if (DualCookies.isLegacyName(cookie.getName(), getLegacyCookieSuffix())) {
+            log.debug("SameSite will NOT be set for legacy fallback cookie.");
+            return;
+        }
+        sb.append("; SameSite=None");
+        if (!cookie.getSecure()) {
             sb.append("; Secure");
         }
     }
 
+    /**
+     * Generates the Set-Cookie header values of all cookies of a response, in order.
+     * @see BatchCookieResponse
+     */
+    List<String> generateHeaders(Collection<Cookie> cookies, HttpServletRequest request);
+
+    /**
+     * Writes the Set-Cookie header value of the cookie straight into a Coyote buffer, as ISO-8859-1 bytes.
+     * @param header chunk the value is appended to, without limit
+     * @see SetCookieHeaders
+     */
+    void generateHeader(Cookie cookie, HttpServletRequest request, ByteChunk header);
+
+    boolean getDualCookies();
+
+    String getLegacyCookieSuffix();
+
+    /**
+     * Request attribute holding the verdict of {@link #sameSiteSupportedUserAgent(HttpServletRequest)},
+     * so user-agent is classified at most once per request whatever the number of cookies.
+     */
+    String SAME_SITE_SUPPORTED_ATTRIBUTE = SameSiteCookieAppender.class.getName() + ".SAME_SITE_SUPPORTED";
+
     default boolean sameSiteSupportedUserAgent(HttpServletRequest request) {
-        String userAgent = request.getHeader(USER_AGENT_HEADER);
-        if (userAgent == null || userAgent.isEmpty()) {
-            log.debug("SameSiteCookies.NONE will NOT be set. user-agent is null or empty.");
-            return false;
+        Object supported = request.getAttribute(SAME_SITE_SUPPORTED_ATTRIBUTE);
+        if (supported instanceof Boolean) {
+            return (Boolean) supported;
+        }
+        boolean result = classifyUserAgent(request);
+        request.setAttribute(SAME_SITE_SUPPORTED_ATTRIBUTE, Boolean.valueOf(result));
+        return result;
+    }
+
+    default boolean classifyUserAgent(HttpServletRequest request) {
+        UserAgentClassifier classifier = getUserAgentClassifier();
+        if (classifier.bypass()) {
+            log.debug("SameSiteCookies.NONE will be set. user-agent check is bypassed.");
+            return true;
+        }
+        Boolean incompatible = classifier.classifyClientHints(request.getHeader(CLIENT_HINTS_HEADER));
+        if (incompatible != null) {
+            log.debug("SameSite=None compatibility decided by user-agent client hints.");
+        } else {
+            String userAgent = request.getHeader(USER_AGENT_HEADER);
+            if (userAgent == null || userAgent.isEmpty()) {
+                log.debug("SameSiteCookies.NONE will NOT be set. user-agent is null or empty.");
+                return false;
+            }
+            incompatible = classifier.isSameSiteNoneIncompatible(userAgent);
+        }
+        classifier.record(incompatible);
+        return !incompatible;
+    }
+
+    /**
+     * Same as {@link #sameSiteSupportedUserAgent(HttpServletRequest)} on the Coyote request, reading the
+     * header bytes directly so no String is created for the user-agent.
+     * <br>Meant for integrations that have the Coyote request at hand (e.g. a Valve calling
+     * {@code request.getCoyoteRequest()}), they can store the result in the
+     * {@link #SAME_SITE_SUPPORTED_ATTRIBUTE} request attribute so every following cookie reuses it.
+     */
+    default boolean sameSiteSupportedUserAgent(Request request) {
+        UserAgentClassifier classifier = getUserAgentClassifier();
+        if (classifier.bypass()) {
+            log.debug("SameSiteCookies.NONE will be set. user-agent check is bypassed.");
+            return true;
         }
-        return !isSameSiteNoneIncompatible(userAgent);
+        MimeHeaders headers = request.getMimeHeaders();
+        Boolean incompatible = classifier.classifyClientHints(headers.getValue(CLIENT_HINTS_HEADER));
+        if (incompatible != null) {
+            log.debug("SameSite=None compatibility decided by user-agent client hints.");
+        } else {
+            MessageBytes userAgent = headers.getValue(USER_AGENT_HEADER);
+            if (userAgent == null || userAgent.isNull() || userAgent.getLength() == 0) {
+                log.debug("SameSiteCookies.NONE will NOT be set. user-agent is null or empty.");
+                return false;
+            }
+            incompatible = classifier.isSameSiteNoneIncompatible(userAgent);
+        }
+        classifier.record(incompatible);
+        return !incompatible;
     }
 
+    UserAgentClassifier getUserAgentClassifier();
+
     // Classes of browsers known to be incompatible.
     static boolean isSameSiteNoneIncompatible(String userAgent) {
-        return hasWebKitSameSiteBug(userAgent) ||
-                dropsUnrecognizedSameSiteCookies(userAgent);
+        return UserAgentScanner.isSameSiteNoneIncompatible(userAgent);
     }
 
     static boolean hasWebKitSameSiteBug(String userAgent) {
@@ -169,78 +299,34 @@ interface SameSiteCookieAppender
     }
 
     static boolean isIosVersion(int major, String userAgent) {
-        Pattern pattern = Pattern.compile("\\(iP.+; CPU .*OS (\\d+)[_\\d]*.*\\) AppleWebKit/");
-        Matcher matcher = pattern.matcher(userAgent);
-        // Extract digits from first capturing group.
-        return matcher.find() && matcher.group(1).equals(String.valueOf(major));
+        return UserAgentScanner.isIosVersion(major, userAgent);
     }
 
     static boolean isMacosxVersion(int major, int minor, String userAgent) {
-        Pattern pattern = Pattern.compile("\\(Macintosh;.*Mac OS X (\\d+)_(\\d+)[_\\d]*.*\\) AppleWebKit/");
-        Matcher matcher = pattern.matcher(userAgent);
-        // Extract digits from first and second capturing groups.
-        return matcher.find() && matcher.group(1).equals(String.valueOf(major)) &&
-                matcher.group(2).equals(String.valueOf(minor));
+        return UserAgentScanner.isMacosxVersion(major, minor, userAgent);
     }
 
     static boolean isSafari(String userAgent) {
-        Pattern pattern = Pattern.compile("Version/.* Safari/");
-        Matcher matcher = pattern.matcher(userAgent);
-        return matcher.find() && !isChromiumBased(userAgent);
+        return UserAgentScanner.isSafari(userAgent);
     }
 
     static boolean isMacEmbeddedBrowser(String userAgent) {
-        String regex = "^Mozilla/[.\\d]+ \\(Macintosh;.*Mac OS X [_\\d]+\\) "
-                + "AppleWebKit/[.\\d]+ \\(KHTML, like Gecko\\)$";
-        return userAgent.matches(regex);
+        return UserAgentScanner.isMacEmbeddedBrowser(userAgent);
     }
 
     static boolean isChromiumBased(String userAgent) {
-        Pattern pattern = Pattern.compile("Chrom(e|ium)");
-        Matcher matcher = pattern.matcher(userAgent);
-        return matcher.find();    
+        return UserAgentScanner.isChromiumBased(userAgent);
     }
 
     static boolean isChromiumVersionAtLeast(int major, String userAgent) {
-        Pattern pattern = Pattern.compile("Chrom[^ /]+/(\\d+)[.\\d]* ");
-        Matcher matcher = pattern.matcher(userAgent);
-        // Extract digits from first capturing group.
-        if (matcher.find()) {
-            try {
-                return Integer.parseInt(matcher.group(1)) >= major;
-            } catch (NumberFormatException e) {
-                log.debug("isChromiumVersionAtLeast can not parse int.", e);
-            }
-        }
-        return false;
+        return UserAgentScanner.isChromiumVersionAtLeast(major, userAgent);
     }
 
     static boolean isUcBrowser(String userAgent) {
-        Pattern pattern = Pattern.compile("UCBrowser/");
-        Matcher matcher = pattern.matcher(userAgent);
-        return matcher.find();
+        return UserAgentScanner.isUcBrowser(userAgent);
     }
 
     static boolean isUcBrowserVersionAtLeast(int major, int minor, int build, String userAgent) {
-        // Extract digits from three capturing groups.
-        Pattern pattern = Pattern.compile("UCBrowser/(\\d+)\\.(\\d+)\\.(\\d+)[.\\d]* ");
-        Matcher matcher = pattern.matcher(userAgent);
-        if (matcher.find()) {
-            try {
-                int major_version = Integer.parseInt(matcher.group(1));
-                if (major_version != major) {
-                    return major_version > major;
-                }
-                int minor_version = Integer.parseInt(matcher.group(2));
-                if (minor_version != minor) {
-                    return minor_version > minor;
-                }
-                int build_version = Integer.parseInt(matcher.group(3));
-                return build_version >= build;
-            } catch (NumberFormatException e) {
-                log.debug("isUcBrowserVersionAtLeast can not parse int.", e);
-            }
-        }
-        return false;
+        return UserAgentScanner.isUcBrowserVersionAtLeast(major, minor, build, userAgent);
     }
 }
\ No newline at end of file
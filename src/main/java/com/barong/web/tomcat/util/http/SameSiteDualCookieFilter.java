@@ -0,0 +1,60 @@
+package com.barong.web.tomcat.util.http;
+
+import java.io.IOException;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Adds the legacy fallback cookie of the dual-cookie mode: every cookie added to the response is
+ * followed by a copy under the suffixed name. A CookieProcessor renders one Set-Cookie header per
+ * cookie, so the second cookie has to be added on the response.
+ * <br>
+ * <br>Use together with a processor having {@code dualCookies="true"} and the same
+ * {@code legacyCookieSuffix} init parameter (default {@value DualCookies#DEFAULT_LEGACY_SUFFIX}).
+ */
+public class SameSiteDualCookieFilter implements Filter {
+
+    private String legacyCookieSuffix = DualCookies.DEFAULT_LEGACY_SUFFIX;
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+        String suffix = filterConfig.getInitParameter("legacyCookieSuffix");
+        if (suffix != null && !suffix.isEmpty()) {
+            legacyCookieSuffix = suffix;
+        }
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        if (response instanceof HttpServletResponse) {
+            response = new DualCookieResponse((HttpServletResponse) response, legacyCookieSuffix);
+        }
+        chain.doFilter(request, response);
+    }
+
+    private static final class DualCookieResponse extends HttpServletResponseWrapper {
+
+        private final String legacyCookieSuffix;
+
+        DualCookieResponse(HttpServletResponse response, String legacyCookieSuffix) {
+            super(response);
+            this.legacyCookieSuffix = legacyCookieSuffix;
+        }
+
+        @Override
+        public void addCookie(Cookie cookie) {
+            super.addCookie(cookie);
+            if (!DualCookies.isLegacyName(cookie.getName(), legacyCookieSuffix)) {
+                super.addCookie(DualCookies.legacyCookie(cookie, legacyCookieSuffix));
+            }
+        }
+    }
+}
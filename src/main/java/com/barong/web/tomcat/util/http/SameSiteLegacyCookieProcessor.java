@@ -3,9 +3,11 @@ package com.barong.web.tomcat.util.http;
 
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.text.FieldPosition;
+import java.util.ArrayList;
 import java.util.BitSet;
-import java.util.Date;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 
@@ -17,7 +19,6 @@ import org.apache.tomcat.util.http.CookieProcessorBase;
 import org.apache.tomcat.util.http.LegacyCookieProcessor;
 import org.apache.tomcat.util.http.MimeHeaders;
 import org.apache.tomcat.util.http.SameSiteCookies;
-import org.apache.tomcat.util.http.ServerCookie;
 import org.apache.tomcat.util.http.ServerCookies;
 import org.apache.tomcat.util.log.UserDataHelper;
 import org.apache.tomcat.util.res.StringManager;
@@ -66,6 +67,52 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
 
     private final BitSet allowedWithoutQuotes = new BitSet(128);
 
+    // Cookie value and attribute characters, see scan()
+    private static final int CONTROL = 1;
+    private static final int QUOTE_V0 = 2;
+    private static final int QUOTE_V1 = 4;
+    private static final int ESCAPE = 8;
+    private static final int ALREADY_QUOTED = 16;
+
+    private final byte[] charFlags = new byte[128];
+
+    // Cookie header byte classes, see updateByteClasses()
+    private static final int B_CONTROL = 1;
+    private static final int B_WHITESPACE = 2;
+    private static final int B_SKIP = 4;
+    private static final int B_NAME_V0 = 8;
+    private static final int B_NAME_V1 = 16;
+    private static final int B_VALUE_V0 = 32;
+    private static final int B_VALUE_V1 = 64;
+    private static final int B_VALUE_START_V0 = 128;
+    private static final int B_VALUE_START_V1 = 256;
+
+    // Rebuilt when a parsing setting changes, never modified once published
+    private volatile int[] byteClasses;
+
+    private volatile CookieHeaderCache cookieHeaderCache;
+
+    private int maxParsedCookies = -1;
+
+    private int maxCookieLength = -1;
+
+    private int maxCookieHeaderBytes = -1;
+
+    private final LongAdder cookieBudgetExceededCount = new LongAdder();
+
+    private boolean dualCookies = false;
+
+    private String legacyCookieSuffix = DualCookies.DEFAULT_LEGACY_SUFFIX;
+
+    private boolean threadLocalBuffers = true;
+
+    private final HeaderTemplates headerTemplates = new HeaderTemplates(HeaderTemplates.DEFAULT_SIZE);
+
+    // Incremented when quoting rules change, so PreparedCookie instances are quoted again
+    private volatile int quotingConfig;
+
+    private final UserAgentClassifier userAgentClassifier = new UserAgentClassifier();
+
     public SameSiteLegacyCookieProcessor() {
         // BitSet elements will default to false
         for (char c : HTTP_SEPARATORS) {
@@ -103,6 +150,8 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
         if (!getAllowHttpSepsInV0() && !getForwardSlashIsSeparator()) {
             allowedWithoutQuotes.set('/');
         }
+        updateCharFlags();
+        updateByteClasses();
     }
 
 
@@ -113,6 +162,8 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
 
     public void setAllowEqualsInValue(boolean allowEqualsInValue) {
         this.allowEqualsInValue = allowEqualsInValue;
+        updateByteClasses();
+        clearCookieHeaderCache();
     }
 
 
@@ -123,6 +174,7 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
 
     public void setAllowNameOnly(boolean allowNameOnly) {
         this.allowNameOnly = allowNameOnly;
+        clearCookieHeaderCache();
     }
 
 
@@ -149,6 +201,11 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
         } else {
             allowedWithoutQuotes.set('/');
         }
+        updateCharFlags();
+        updateByteClasses();
+        clearCookieHeaderCache();
+        quotingConfig++;
+        headerTemplates.clear();
     }
 
 
@@ -168,6 +225,11 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
         } else {
             allowedWithoutQuotes.set('/');
         }
+        updateCharFlags();
+        updateByteClasses();
+        clearCookieHeaderCache();
+        quotingConfig++;
+        headerTemplates.clear();
     }
 
 
@@ -178,6 +240,293 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
 
     public void setAlwaysAddExpires(boolean alwaysAddExpires) {
         this.alwaysAddExpires = alwaysAddExpires;
+        headerTemplates.clear();
+    }
+
+
+    @Override
+    public boolean getDualCookies() {
+        return dualCookies;
+    }
+
+
+    /**
+     * Enables the dual-cookie mode, the user-agent is not classified.
+     *
+     * @param dualCookies true to send SameSite=None cookies along with legacy fallback cookies
+     * @see SameSiteDualCookieFilter
+     */
+    public void setDualCookies(boolean dualCookies) {
+        this.dualCookies = dualCookies;
+    }
+
+
+    @Override
+    public String getLegacyCookieSuffix() {
+        return legacyCookieSuffix;
+    }
+
+
+    public void setLegacyCookieSuffix(String legacyCookieSuffix) {
+        if (legacyCookieSuffix == null || legacyCookieSuffix.isEmpty()) {
+            throw new IllegalArgumentException("legacyCookieSuffix must not be empty");
+        }
+        this.legacyCookieSuffix = legacyCookieSuffix;
+        headerTemplates.clear();
+    }
+
+
+    public boolean getThreadLocalBuffers() {
+        return threadLocalBuffers;
+    }
+
+
+    /**
+     * Keeps a header buffer per thread (the default). Set to false when requests run on virtual threads:
+     * no state is then kept in ThreadLocals, each header is built in a buffer of its expected size.
+     *
+     * @param threadLocalBuffers false to allocate header buffers per call
+     */
+    public void setThreadLocalBuffers(boolean threadLocalBuffers) {
+        this.threadLocalBuffers = threadLocalBuffers;
+    }
+
+
+    public int getCookieHeaderCacheSize() {
+        CookieHeaderCache cache = cookieHeaderCache;
+        return cache == null ? 0 : cache.getSize();
+    }
+
+
+    /**
+     * Enables the bounded cache of parsed Cookie headers. A header identical to a cached one is
+     * not parsed again, the cookies found the first time are added to ServerCookies. Invalid cookie
+     * messages are only logged when the header is parsed.
+     *
+     * @param cookieHeaderCacheSize maximum number of cached headers, 0 disables the cache
+     */
+    public void setCookieHeaderCacheSize(int cookieHeaderCacheSize) {
+        cookieHeaderCache = cookieHeaderCacheSize > 0 ? new CookieHeaderCache(cookieHeaderCacheSize) : null;
+    }
+
+
+    public long getCookieHeaderCacheHitCount() {
+        CookieHeaderCache cache = cookieHeaderCache;
+        return cache == null ? 0 : cache.getHitCount();
+    }
+
+
+    public long getCookieHeaderCacheMissCount() {
+        CookieHeaderCache cache = cookieHeaderCache;
+        return cache == null ? 0 : cache.getMissCount();
+    }
+
+
+    public int getMaxParsedCookies() {
+        return maxParsedCookies;
+    }
+
+
+    /**
+     * Stops parsing the Cookie headers of a request once this number of cookies was found.
+     *
+     * @param maxParsedCookies maximum number of cookies per request, -1 (default) for no limit
+     */
+    public void setMaxParsedCookies(int maxParsedCookies) {
+        this.maxParsedCookies = maxParsedCookies;
+        clearCookieHeaderCache();
+    }
+
+
+    public int getMaxCookieLength() {
+        return maxCookieLength;
+    }
+
+
+    /**
+     * Skips cookies whose name and value are longer than this number of bytes.
+     *
+     * @param maxCookieLength maximum length of a cookie name and value, -1 (default) for no limit
+     */
+    public void setMaxCookieLength(int maxCookieLength) {
+        this.maxCookieLength = maxCookieLength;
+        clearCookieHeaderCache();
+    }
+
+
+    public int getMaxCookieHeaderBytes() {
+        return maxCookieHeaderBytes;
+    }
+
+
+    /**
+     * Stops parsing the Cookie headers of a request after this number of bytes, at the last
+     * cookie separator before the limit.
+     *
+     * @param maxCookieHeaderBytes maximum number of bytes parsed per request, -1 (default) for no limit
+     */
+    public void setMaxCookieHeaderBytes(int maxCookieHeaderBytes) {
+        this.maxCookieHeaderBytes = maxCookieHeaderBytes;
+        clearCookieHeaderCache();
+    }
+
+
+    /**
+     * @return number of requests whose Cookie headers exceeded a parsing limit
+     */
+    public long getCookieBudgetExceededCount() {
+        return cookieBudgetExceededCount.sum();
+    }
+
+
+    private void clearCookieHeaderCache() {
+        CookieHeaderCache cache = cookieHeaderCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+
+    public int getUserAgentCacheSize() {
+        return userAgentClassifier.getCacheSize();
+    }
+
+
+    /**
+     * Enables the bounded cache of user-agent verdicts.
+     *
+     * @param userAgentCacheSize maximum number of cached user-agents, 0 disables the cache
+     */
+    public void setUserAgentCacheSize(int userAgentCacheSize) {
+        userAgentClassifier.setCacheSize(userAgentCacheSize);
+    }
+
+
+    public long getUserAgentCacheHitCount() {
+        return userAgentClassifier.getCacheHitCount();
+    }
+
+
+    public long getUserAgentCacheMissCount() {
+        return userAgentClassifier.getCacheMissCount();
+    }
+
+
+    public long getUserAgentCacheEvictionCount() {
+        return userAgentClassifier.getCacheEvictionCount();
+    }
+
+
+    /**
+     * @return number of requests classified by user-agent client hints (Sec-CH-UA)
+     */
+    public long getClientHintsClassificationCount() {
+        return userAgentClassifier.getClientHintsCount();
+    }
+
+
+    /**
+     * @return number of requests classified by the user-agent string
+     */
+    public long getUserAgentClassificationCount() {
+        return userAgentClassifier.getUserAgentCount();
+    }
+
+
+    public double getUserAgentBypassThreshold() {
+        return userAgentClassifier.getBypassThreshold();
+    }
+
+
+    /**
+     * Enables the adaptive user-agent check: while the share of incompatible user-agents among
+     * sampled requests stays below this threshold, SameSite=None is emitted without classification.
+     *
+     * @param userAgentBypassThreshold incompatible rate, e.g. 0.001; 0 (default) disables the adaptive check
+     * @see AdaptiveUserAgentCheck
+     */
+    public void setUserAgentBypassThreshold(double userAgentBypassThreshold) {
+        userAgentClassifier.setBypassThreshold(userAgentBypassThreshold);
+    }
+
+
+    public double getUserAgentSampleRate() {
+        return userAgentClassifier.getSampleRate();
+    }
+
+
+    /**
+     * @param userAgentSampleRate share of requests sampled by the adaptive user-agent check, default 0.01
+     */
+    public void setUserAgentSampleRate(double userAgentSampleRate) {
+        userAgentClassifier.setSampleRate(userAgentSampleRate);
+    }
+
+
+    public int getUserAgentBypassWindow() {
+        return userAgentClassifier.getBypassWindow();
+    }
+
+
+    /**
+     * @param userAgentBypassWindow seconds of traffic the adaptive user-agent check looks at, default 300
+     */
+    public void setUserAgentBypassWindow(int userAgentBypassWindow) {
+        userAgentClassifier.setBypassWindow(userAgentBypassWindow);
+    }
+
+
+    public boolean getUserAgentBypassMBean() {
+        return userAgentClassifier.getBypassMBean();
+    }
+
+
+    /**
+     * @param userAgentBypassMBean true to register the adaptive user-agent check as an MBean of the
+     *                             platform MBeanServer, default false
+     */
+    public void setUserAgentBypassMBean(boolean userAgentBypassMBean) {
+        userAgentClassifier.setBypassMBean(userAgentBypassMBean);
+    }
+
+
+    public boolean isUserAgentCheckBypassed() {
+        return userAgentClassifier.isBypassing();
+    }
+
+
+    public String getUserAgentRulesFile() {
+        return userAgentClassifier.getRulesFile();
+    }
+
+
+    /**
+     * Replaces the built-in user-agent rules with rules loaded from a file.
+     *
+     * @param userAgentRulesFile path to the rules file, relative to catalina.base
+     * @see UserAgentRules
+     */
+    public void setUserAgentRulesFile(String userAgentRulesFile) {
+        userAgentClassifier.setRulesFile(userAgentRulesFile);
+    }
+
+
+    public int getUserAgentRulesCheckInterval() {
+        return userAgentClassifier.getRulesCheckInterval();
+    }
+
+
+    /**
+     * @param userAgentRulesCheckInterval seconds between checks of the rules file for changes, 0 disables reloading
+     */
+    public void setUserAgentRulesCheckInterval(int userAgentRulesCheckInterval) {
+        userAgentClassifier.setRulesCheckInterval(userAgentRulesCheckInterval);
+    }
+
+
+    @Override
+    public UserAgentClassifier getUserAgentClassifier() {
+        return userAgentClassifier;
     }
 
 
@@ -194,28 +543,151 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
             // nothing to process
             return;
         }
+        // in dual-cookie mode parse aside, legacy cookies are merged afterwards
+        ServerCookies parsed = getDualCookies() ? DualCookies.parsedCookies() : serverCookies;
+        CookieIndex cookies = CookieIndex.into(parsed);
+        CookieHeaderCache cache = cookieHeaderCache;
+        CookieBudget budget = newCookieBudget();
         // process each "cookie" header
         int pos = headers.findHeader("Cookie", 0);
-        while (pos >= 0) {
+        while (pos >= 0 && !budget.isExhausted()) {
             MessageBytes cookieValue = headers.getValue(pos);
 
             if (cookieValue != null && !cookieValue.isNull() ) {
                 if (cookieValue.getType() != MessageBytes.T_BYTES ) {
-                    Exception e = new Exception();
-                    // TODO: Review this in light of HTTP/2
-                    log.debug("Cookies: Parsing cookie as String. Expected bytes.", e);
-                    cookieValue.toBytes();
-                }
-                if (log.isDebugEnabled()) {
-                    log.debug("Cookies: Parsing b[]: " + cookieValue.toString());
+                    // HTTP/2 headers are chars, parsed as they are rather than converted
+                    if (log.isDebugEnabled()) {
+                        log.debug("Cookies: Parsing chars: " + cookieValue.toString());
+                    }
+                    processCookieHeader(chars(cookieValue), cookies, budget);
+                } else {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Cookies: Parsing b[]: " + cookieValue.toString());
+                    }
+                    ByteChunk bc = cookieValue.getByteChunk();
+                    if (cache != null && bc.getBytes() != null && bc.getLength() > 0 &&
+                            bc.getLength() <= CookieHeaderCache.MAX_HEADER_LENGTH) {
+                        processCookieHeader(cache, bc.getBytes(), bc.getOffset(), bc.getLength(), parsed, cookies,
+                                budget);
+                    } else {
+                        processCookieHeader(bc.getBytes(), bc.getOffset(), bc.getLength(), cookies, budget);
+                    }
                 }
-                ByteChunk bc = cookieValue.getByteChunk();
-                processCookieHeader(bc.getBytes(), bc.getOffset(), bc.getLength(), serverCookies);
             }
 
             // search from the next position
             pos = headers.findHeader("Cookie", ++pos);
         }
+        logCookieBudget(budget);
+        if (parsed != serverCookies) {
+            DualCookies.merge(parsed, serverCookies, getLegacyCookieSuffix());
+        }
+    }
+
+
+    /**
+     * Looks one cookie up without parsing the others into ServerCookies: Cookie headers are
+     * only indexed, and only the value found is unescaped and decoded. Meant for valves and
+     * filters that read a single cookie (session, routing) before the application runs.
+     * <br>
+     * <br>Contract, the same as the first cookie with the name that {@link #parseCookieHeader} gives:
+     * <ul>
+     * <li>cookies are searched in header order, the first one with the name wins when it is sent
+     * more than once;</li>
+     * <li>the same settings and limits apply: a cookie skipped as invalid, or beyond
+     * {@code maxParsedCookies}, {@code maxCookieLength} or {@code maxCookieHeaderBytes}, is not found;</li>
+     * <li>the value is decoded with {@link #getCharset()}, escaped quotes unescaped;</li>
+     * <li>in dual-cookie mode, the legacy cookie (name and legacy suffix) is returned when the cookie
+     * itself is in none of the headers. No other merging is applied: a name ending with the legacy
+     * suffix is looked up as it is, although parseCookieHeader renames or drops such cookies.</li>
+     * </ul>
+     *
+     * @param headers request headers, only the Cookie ones are read
+     * @param name    cookie name, compared case-sensitively
+     * @return value of the cookie, null if there is none
+     */
+    public String findCookieValue(MimeHeaders headers, String name) {
+        if (headers == null) {
+            return null;
+        }
+        String legacyName = getDualCookies() ? DualCookies.legacyName(name, getLegacyCookieSuffix()) : null;
+        String value = null;
+        String legacyValue = null;
+        CookieIndex cookies = CookieIndex.offsets();
+        CookieBudget budget = newCookieBudget();
+        int pos = headers.findHeader("Cookie", 0);
+        while (pos >= 0 && value == null && !budget.isExhausted()) {
+            MessageBytes cookieValue = headers.getValue(pos);
+            if (cookieValue != null && !cookieValue.isNull()) {
+                if (cookieValue.getType() != MessageBytes.T_BYTES) {
+                    processCookieHeader(chars(cookieValue), cookies, budget);
+                } else {
+                    ByteChunk bc = cookieValue.getByteChunk();
+                    processCookieHeader(bc.getBytes(), bc.getOffset(), bc.getLength(), cookies, budget);
+                }
+                int found = cookies.find(name);
+                if (found >= 0) {
+                    value = cookies.value(found, getCharset());
+                } else if (legacyName != null && legacyValue == null) {
+                    found = cookies.find(legacyName);
+                    if (found >= 0) {
+                        legacyValue = cookies.value(found, getCharset());
+                    }
+                }
+            }
+            pos = headers.findHeader("Cookie", ++pos);
+        }
+        // Counted and logged once per lookup, like a parse
+        logCookieBudget(budget);
+        return value != null ? value : legacyValue;
+    }
+
+
+    /**
+     * @return content of a T_CHARS or T_STR header, not copied
+     */
+    private static CharSequence chars(MessageBytes cookieValue) {
+        if (cookieValue.getType() == MessageBytes.T_CHARS) {
+            return cookieValue.getCharChunk();
+        }
+        return cookieValue.toString();
+    }
+
+
+    private CookieBudget newCookieBudget() {
+        return new CookieBudget(getMaxParsedCookies(), getMaxCookieLength(), getMaxCookieHeaderBytes());
+    }
+
+
+    private void logCookieBudget(CookieBudget budget) {
+        int exceeded = budget.getExceeded();
+        if (exceeded == 0) {
+            return;
+        }
+        cookieBudgetExceededCount.increment();
+        UserDataHelper.Mode logMode = userDataLog.getNextMode();
+        if (logMode != null) {
+            StringBuilder message = new StringBuilder("Cookie parsing limit exceeded:");
+            if ((exceeded & CookieBudget.COOKIE_COUNT) != 0) {
+                message.append(" maxParsedCookies=").append(getMaxParsedCookies());
+            }
+            if ((exceeded & CookieBudget.COOKIE_LENGTH) != 0) {
+                message.append(" maxCookieLength=").append(getMaxCookieLength());
+            }
+            if ((exceeded & CookieBudget.HEADER_BYTES) != 0) {
+                message.append(" maxCookieHeaderBytes=").append(getMaxCookieHeaderBytes());
+            }
+            switch (logMode) {
+                case INFO_THEN_DEBUG:
+                    message.append(sm.getString("cookies.fallToDebug"));
+                //$FALL-THROUGH$
+                case INFO:
+                    log.info(message);
+                    break;
+                case DEBUG:
+                    log.debug(message);
+            }
+        }
     }
 
 
@@ -236,29 +708,164 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
          *
          * Note that by checking for tokens we will also throw an exception if a
          * control character is encountered.
+         *
+         * Everything but the value is rendered once per cookie shape, see HeaderTemplates.
          */
-        int version = cookie.getVersion();
+        SameSiteCookies sameSiteCookiesValue = getSameSiteCookies();
+        boolean dualCookies = getDualCookies() && SameSiteCookies.NONE.equals(sameSiteCookiesValue);
+        boolean sameSiteNoneAllowed = !dualCookies && isSameSiteNoneAllowed(sameSiteCookiesValue, request);
+
+        // Now build the cookie header
+        StringBuilder buf = HeaderBuilder.get(cookie, threadLocalBuffers);
+        appendHeader(buf, cookie, sameSiteCookiesValue, sameSiteNoneAllowed, dualCookies, System.currentTimeMillis());
+        return buf.toString();
+    }
+
+
+    /**
+     * Generates the Set-Cookie header values of all cookies of a response. The SameSite verdict
+     * and the current time are resolved once for the whole batch.
+     */
+    @Override
+    public List<String> generateHeaders(Collection<Cookie> cookies, HttpServletRequest request) {
+        SameSiteCookies sameSiteCookiesValue = getSameSiteCookies();
+        boolean dualCookies = getDualCookies() && SameSiteCookies.NONE.equals(sameSiteCookiesValue);
+        boolean sameSiteNoneAllowed = !dualCookies && isSameSiteNoneAllowed(sameSiteCookiesValue, request);
+        long now = System.currentTimeMillis();
+
+        List<String> headers = new ArrayList<>(cookies.size());
+        for (Cookie cookie : cookies) {
+            StringBuilder buf = HeaderBuilder.get(cookie, threadLocalBuffers);
+            appendHeader(buf, cookie, sameSiteCookiesValue, sameSiteNoneAllowed, dualCookies, now);
+            headers.add(buf.toString());
+        }
+        return headers;
+    }
+
+
+    private void appendHeader(StringBuilder buf, Cookie cookie, SameSiteCookies sameSiteCookiesValue,
+            boolean sameSiteNoneAllowed, boolean dualCookies, long now) {
+        PreparedCookie.Prepared prepared = prepared(cookie);
+        String value = cookie.getValue();
+        int valueFlags = prepared != null ? prepared.valueFlags : scan(value);
+        HeaderTemplates.Template template =
+                headerTemplate(cookie, valueFlags, sameSiteCookiesValue, sameSiteNoneAllowed, dualCookies);
+
+        buf.append(template.prefix);
+        if (prepared != null && prepared.version == template.version) {
+            buf.append(prepared.quotedValue);
+        } else {
+            maybeQuote(buf, value, template.version, valueFlags);
+        }
+        buf.append(template.middle);
+        if (template.expiresMaxAge > 0) {
+            CookieDate.appendExpires(buf, now, template.expiresMaxAge);
+        }
+        buf.append(template.suffix);
+    }
+
+
+    @Override
+    public void generateHeader(Cookie cookie, HttpServletRequest request, ByteChunk header) {
+        SameSiteCookies sameSiteCookiesValue = getSameSiteCookies();
+        boolean dualCookies = getDualCookies() && SameSiteCookies.NONE.equals(sameSiteCookiesValue);
+        boolean sameSiteNoneAllowed = !dualCookies && isSameSiteNoneAllowed(sameSiteCookiesValue, request);
+
+        PreparedCookie.Prepared prepared = prepared(cookie);
         String value = cookie.getValue();
+        int valueFlags = prepared != null ? prepared.valueFlags : scan(value);
+        HeaderTemplates.Template template =
+                headerTemplate(cookie, valueFlags, sameSiteCookiesValue, sameSiteNoneAllowed, dualCookies);
+
+        HeaderBytes.append(header, template.prefixBytes);
+        if (prepared != null && prepared.version == template.version) {
+            HeaderBytes.append(header, prepared.quotedValue);
+        } else {
+            StringBuilder quoted = HeaderBuilder.get(cookie, threadLocalBuffers);
+            maybeQuote(quoted, value, template.version, valueFlags);
+            HeaderBytes.append(header, quoted);
+        }
+        HeaderBytes.append(header, template.middleBytes);
+        if (template.expiresMaxAge > 0) {
+            CookieDate.appendExpires(header, System.currentTimeMillis(), template.expiresMaxAge);
+        }
+        HeaderBytes.append(header, template.suffixBytes);
+    }
+
+
+    /**
+     * Validates and quotes the cookie once, for cookies sent unchanged with many responses.
+     *
+     * @return copy of the cookie whose header is generated without checking its characters again
+     * @throws IllegalArgumentException if the cookie can not be sent by this processor
+     */
+    public PreparedCookie prepareCookie(Cookie cookie) {
+        PreparedCookie prepared = new PreparedCookie(cookie);
+        int quotingConfig = this.quotingConfig;
+        String value = cookie.getValue();
+        int valueFlags = scan(value);
+        int version = cookie.getVersion();
+        if (version == 0) {
+            if (needsQuotes(valueFlags, 0) || cookie.getComment() != null ||
+                    needsQuotes(cookie.getPath(), 0) || needsQuotes(cookie.getDomain(), 0)) {
+                version = 1;
+            }
+        }
+        StringBuilder quoted = new StringBuilder();
+        maybeQuote(quoted, value, version, valueFlags);
+        // Attributes are validated here, their quoted form is part of the header template
+        maybeQuote(new StringBuilder(), cookie.getComment(), version);
+        maybeQuote(new StringBuilder(), cookie.getPath(), version);
+        maybeQuote(new StringBuilder(), cookie.getDomain(), version);
+        prepared.prepared(this, quotingConfig, valueFlags, version, quoted.toString());
+        return prepared;
+    }
+
+
+    private PreparedCookie.Prepared prepared(Cookie cookie) {
+        if (cookie instanceof PreparedCookie) {
+            return ((PreparedCookie) cookie).prepared(this, quotingConfig);
+        }
+        return null;
+    }
+
+
+    private HeaderTemplates.Template headerTemplate(Cookie cookie, int valueFlags,
+            SameSiteCookies sameSiteCookiesValue, boolean sameSiteNoneAllowed, boolean dualCookies) {
+        boolean valueNeedsQuotes = cookie.getVersion() == 0 && needsQuotes(valueFlags, 0);
+
+        HeaderTemplates.Template template =
+                headerTemplates.get(cookie, valueNeedsQuotes, sameSiteCookiesValue, sameSiteNoneAllowed, dualCookies);
+        if (template == null) {
+            template = createHeaderTemplate(cookie, valueNeedsQuotes, sameSiteCookiesValue, sameSiteNoneAllowed,
+                    dualCookies);
+            headerTemplates.put(cookie, template);
+        }
+        return template;
+    }
+
+
+    private HeaderTemplates.Template createHeaderTemplate(Cookie cookie, boolean valueNeedsQuotes,
+            SameSiteCookies sameSiteCookiesValue, boolean sameSiteNoneAllowed, boolean dualCookies) {
+        int version = cookie.getVersion();
         String path = cookie.getPath();
         String domain = cookie.getDomain();
         String comment = cookie.getComment();
 
         if (version == 0) {
             // Check for the things that require a v1 cookie
-            if (needsQuotes(value, 0) || comment != null || needsQuotes(path, 0) || needsQuotes(domain, 0)) {
+            if (valueNeedsQuotes || comment != null || needsQuotes(path, 0) || needsQuotes(domain, 0)) {
                 version = 1;
             }
         }
 
-        // Now build the cookie header
-        StringBuffer buf = new StringBuffer(); // can't use StringBuilder due to DateFormat
+        StringBuilder buf = new StringBuilder();
 
         // Just use the name supplied in the Cookie
         buf.append(cookie.getName());
         buf.append("=");
-
-        // Value
-        maybeQuote(buf, value, version);
+        String prefix = buf.toString();
+        buf.setLength(0);
 
         // Add version 1 specific information
         if (version == 1) {
@@ -280,6 +887,7 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
 
         // Max-Age=secs ... or use old "Expires" format
         int maxAge = cookie.getMaxAge();
+        int expiresMaxAge = -1;
         if (maxAge >= 0) {
             if (version > 0) {
                 buf.append ("; Max-Age=");
@@ -294,13 +902,16 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
                 if (maxAge == 0) {
                     buf.append( ANCIENT_DATE );
                 } else {
-                    COOKIE_DATE_FORMAT.get().format(
-                            new Date(System.currentTimeMillis() + maxAge * 1000L),
-                            buf,
-                            new FieldPosition(0));
+                    // Rendered with every header
+                    expiresMaxAge = maxAge;
                 }
             }
         }
+        String middle = "";
+        if (expiresMaxAge > 0) {
+            middle = buf.toString();
+            buf.setLength(0);
+        }
 
         // Path=path
         if (path!=null) {
@@ -318,24 +929,35 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
             buf.append("; HttpOnly");
         }
 
-        SameSiteCookies sameSiteCookiesValue = getSameSiteCookies();
+        if (dualCookies) {
+            appendDualSameSite(buf, cookie);
+        } else {
+            appendSameSite(sameSiteCookiesValue, buf, cookie, sameSiteNoneAllowed);
+        }
 
-        appendSameSite(sameSiteCookiesValue, buf, request);
+        return new HeaderTemplates.Template(cookie, valueNeedsQuotes, sameSiteCookiesValue, sameSiteNoneAllowed,
+                dualCookies, version, prefix, middle, expiresMaxAge, buf.toString());
+    }
 
-        return buf.toString();
+
+    private void maybeQuote(StringBuilder buf, String value, int version) {
+        maybeQuote(buf, value, version, scan(value));
     }
 
 
-    private void maybeQuote(StringBuffer buf, String value, int version) {
+    /**
+     * @param flags result of {@link #scan(String)} for the value, so it is scanned only once
+     */
+    private void maybeQuote(StringBuilder buf, String value, int version, int flags) {
         if (value == null || value.length() == 0) {
             buf.append("\"\"");
-        } else if (alreadyQuoted(value)) {
+        } else if ((flags & ALREADY_QUOTED) != 0) {
             buf.append('"');
-            escapeDoubleQuotes(buf, value,1,value.length()-1);
+            escapeDoubleQuotes(buf, value, 1, value.length() - 1, flags);
             buf.append('"');
-        } else if (needsQuotes(value, version)) {
+        } else if (needsQuotes(flags, version)) {
             buf.append('"');
-            escapeDoubleQuotes(buf, value,0,value.length());
+            escapeDoubleQuotes(buf, value, 0, value.length(), flags);
             buf.append('"');
         } else {
             buf.append(value);
@@ -343,9 +965,9 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
     }
 
 
-    private static void escapeDoubleQuotes(StringBuffer b, String s, int beginIndex, int endIndex) {
-        if (s.indexOf('"') == -1 && s.indexOf('\\') == -1) {
-            b.append(s);
+    private static void escapeDoubleQuotes(StringBuilder b, String s, int beginIndex, int endIndex, int flags) {
+        if ((flags & ESCAPE) == 0) {
+            b.append(s, beginIndex, endIndex);
             return;
         }
 
@@ -363,30 +985,132 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
 
 
     private boolean needsQuotes(String value, int version) {
-        if (value == null) {
-            return false;
+        return needsQuotes(scan(value), version);
+    }
+
+
+    private static boolean needsQuotes(int flags, int version) {
+        if ((flags & CONTROL) != 0) {
+            throw new IllegalArgumentException(
+                    "Control character in cookie value or attribute.");
         }
+        return (flags & (version == 0 ? QUOTE_V0 : QUOTE_V1)) != 0;
+    }
 
+
+    /**
+     * Single pass over a cookie value or attribute, quotes excluded if already quoted.
+     * Flags of all characters are merged 8 at a time, so a token only costs one branch per 8 characters.
+     *
+     * @return CONTROL, QUOTE_V0, QUOTE_V1, ESCAPE flags of the characters and ALREADY_QUOTED
+     */
+    private int scan(String value) {
+        if (value == null) {
+            return 0;
+        }
+        int flags = 0;
         int i = 0;
         int len = value.length();
-
         if (alreadyQuoted(value)) {
+            flags = ALREADY_QUOTED;
             i++;
             len--;
         }
-
+        byte[] charFlags = this.charFlags;
+        for (; i + 8 <= len; i += 8) {
+            char c0 = value.charAt(i);
+            char c1 = value.charAt(i + 1);
+            char c2 = value.charAt(i + 2);
+            char c3 = value.charAt(i + 3);
+            char c4 = value.charAt(i + 4);
+            char c5 = value.charAt(i + 5);
+            char c6 = value.charAt(i + 6);
+            char c7 = value.charAt(i + 7);
+            if ((c0 | c1 | c2 | c3 | c4 | c5 | c6 | c7) >= 0x80) {
+                return flags | CONTROL;
+            }
+            flags |= charFlags[c0] | charFlags[c1] | charFlags[c2] | charFlags[c3] |
+                    charFlags[c4] | charFlags[c5] | charFlags[c6] | charFlags[c7];
+        }
         for (; i < len; i++) {
             char c = value.charAt(i);
+            if (c >= 0x80) {
+                return flags | CONTROL;
+            }
+            flags |= charFlags[c];
+        }
+        return flags;
+    }
+
+
+    private void updateCharFlags() {
+        for (char c = 0; c < 128; c++) {
+            int flags = 0;
             if ((c < 0x20 && c != '\t') || c >= 0x7f) {
-                throw new IllegalArgumentException(
-                        "Control character in cookie value or attribute.");
+                flags |= CONTROL;
             }
-            if (version == 0 && !allowedWithoutQuotes.get(c) ||
-                    version == 1 && isHttpSeparator(c)) {
-                return true;
+            if (!allowedWithoutQuotes.get(c)) {
+                flags |= QUOTE_V0;
             }
+            if (httpSeparatorFlags.get(c)) {
+                flags |= QUOTE_V1;
+            }
+            if (c == '"' || c == '\\') {
+                flags |= ESCAPE;
+            }
+            charFlags[c] = (byte) flags;
+        }
+    }
+
+
+    /**
+     * Builds the class of every byte for the Cookie header parser, answering in one lookup the
+     * separator, whitespace and token checks of the current settings. Bytes rejected by those
+     * checks (controls other than tab, non ASCII) only have B_CONTROL, and B_WHITESPACE for
+     * CR, LF and FF.
+     */
+    private void updateByteClasses() {
+        boolean allowHttpSeps = getAllowHttpSepsInV0();
+        boolean allowEquals = getAllowEqualsInValue();
+        int[] classes = new int[256];
+        for (int b = 0; b < 256; b++) {
+            char c = (char) b;
+            int flags = 0;
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f') {
+                flags |= B_WHITESPACE;
+            }
+            if ((c < 0x20 && c != '\t') || c >= 0x7f) {
+                classes[b] = flags | B_CONTROL;
+                continue;
+            }
+            boolean httpSeparator = httpSeparatorFlags.get(c);
+            boolean v0Separator = V0_SEPARATOR_FLAGS.get(c);
+            if (httpSeparator && !allowHttpSeps || v0Separator || (flags & B_WHITESPACE) != 0) {
+                flags |= B_SKIP;
+            }
+            boolean nameV0 = !httpSeparator || allowHttpSeps && c != '=' && !v0Separator;
+            boolean equalsInValue = c == '=' && allowEquals;
+            if (nameV0) {
+                flags |= B_NAME_V0;
+            }
+            if (!httpSeparator) {
+                flags |= B_NAME_V1;
+            }
+            if (nameV0 || equalsInValue) {
+                flags |= B_VALUE_V0;
+            }
+            if (!httpSeparator || equalsInValue) {
+                flags |= B_VALUE_V1;
+            }
+            if (!v0Separator && allowHttpSeps || !httpSeparator || c == '=') {
+                flags |= B_VALUE_START_V0;
+            }
+            if (!httpSeparator || c == '=') {
+                flags |= B_VALUE_START_V1;
+            }
+            classes[b] = flags;
         }
-        return false;
+        byteClasses = classes;
     }
 
 
@@ -397,18 +1121,63 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
     }
 
 
+    /**
+     * Adds the cookies of a header found in the cache, otherwise parses the header and caches
+     * the cookies found.
+     */
+    private void processCookieHeader(CookieHeaderCache cache, byte[] bytes, int off, int len,
+                                     ServerCookies serverCookies, CookieIndex cookies, CookieBudget budget) {
+        long hash = CookieHeaderCache.hash(bytes, off, len);
+        int[] layout = cache.get(hash, bytes, off, len);
+        if (layout != null && budget.fits(len, CookieIndex.count(layout))) {
+            cache.hit();
+            budget.consume(len, CookieIndex.count(layout));
+            cookies.header(bytes);
+            cookies.replay(layout, off);
+            return;
+        }
+        cache.miss();
+        CookieIndex recording = CookieIndex.recording(serverCookies);
+        processCookieHeader(bytes, off, len, recording, budget);
+        if (budget.getExceeded() == 0 && !recording.hasInvalid()) {
+            // Headers exceeding a limit or holding invalid cookies are parsed, counted and logged every time
+            cache.put(hash, bytes, off, len, recording.layout(off));
+        }
+    }
+
+
+    private void processCookieHeader(byte bytes[], int off, int len, CookieIndex cookies, CookieBudget budget) {
+        if (len <= 0 || bytes == null) {
+            return;
+        }
+        cookies.header(bytes);
+        processCookieHeader(CookieHeaderText.of(bytes), off, len, cookies, budget);
+    }
+
+
+    /**
+     * Parses a cookie header given as chars, as HTTP/2 gives it, exactly as its ISO-8859-1 bytes
+     */
+    private void processCookieHeader(CharSequence chars, CookieIndex cookies, CookieBudget budget) {
+        if (chars.length() <= 0) {
+            return;
+        }
+        cookies.header(chars);
+        processCookieHeader(CookieHeaderText.of(chars), 0, chars.length(), cookies, budget);
+    }
+
+
     /**
      * Parses a cookie header after the initial "Cookie:"
      * [WS][$]token[WS]=[WS](token|QV)[;|,]
      * RFC 2965 / RFC 2109
      * JVK
      */
-    private final void processCookieHeader(byte bytes[], int off, int len,
-                                           ServerCookies serverCookies) {
+    private final void processCookieHeader(CookieHeaderText text, int off, int len,
+                                           CookieIndex cookies, CookieBudget budget) {
 
-        if (len <= 0 || bytes == null) {
-            return;
-        }
+        len = budget.header(text, off, len);
+        int[] classes = byteClasses;
         int end = off + len;
         int pos = off;
         int nameStart = 0;
@@ -416,7 +1185,8 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
         int valueStart = 0;
         int valueEnd = 0;
         int version = 0;
-        ServerCookie sc = null;
+        // A cookie was added that $Domain and $Path apply to
+        boolean current = false;
         boolean isSpecial;
         boolean isQuoted;
 
@@ -425,41 +1195,37 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
             isQuoted = false;
 
             // Skip whitespace and non-token characters (separators)
-            while (pos < end &&
-                    (isHttpSeparator((char) bytes[pos]) &&
-                            !getAllowHttpSepsInV0() ||
-                            isV0Separator((char) bytes[pos]) ||
-                            isWhiteSpace(bytes[pos])))
-            {pos++; }
+            while (pos < end && (classes[text.at(pos)] & B_SKIP) != 0) {pos++; }
 
             if (pos >= end) {
                 return;
             }
+            rejectControl(classes, text.at(pos));
 
             // Detect Special cookies
-            if (bytes[pos] == '$') {
+            if (text.at(pos) == '$') {
                 isSpecial = true;
                 pos++;
             }
 
             // Get the cookie/attribute name. This must be a token
             valueEnd = valueStart = nameStart = pos;
-            pos = nameEnd = getTokenEndPosition(bytes,pos,end,version,true);
+            pos = nameEnd = getTokenEndPosition(classes, text, pos, end, version == 0 ? B_NAME_V0 : B_NAME_V1);
 
             // Skip whitespace
-            while (pos < end && isWhiteSpace(bytes[pos])) {pos++; }
+            while (pos < end && (classes[text.at(pos)] & B_WHITESPACE) != 0) {pos++; }
 
 
             // Check for an '=' -- This could also be a name-only
             // cookie at the end of the cookie header, so if we
             // are past the end of the header, but we have a name
             // skip to the name-only part.
-            if (pos < (end - 1) && bytes[pos] == '=') {
+            if (pos < (end - 1) && text.at(pos) == '=') {
 
                 // Skip whitespace
                 do {
                     pos++;
-                } while (pos < end && isWhiteSpace(bytes[pos]));
+                } while (pos < end && (classes[text.at(pos)] & B_WHITESPACE) != 0);
 
                 if (pos >= end) {
                     return;
@@ -467,14 +1233,14 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
 
                 // Determine what type of value this is, quoted value,
                 // token, name-only with an '=', or other (bad)
-                switch (bytes[pos]) {
+                switch (text.at(pos)) {
                     case '"': // Quoted Value
                         isQuoted = true;
                         valueStart = pos + 1; // strip "
                         // getQuotedValue returns the position before
                         // at the last quote. This must be dealt with
                         // when the bytes are copied into the cookie
-                        valueEnd = getQuotedValueEndPosition(bytes, valueStart, end);
+                        valueEnd = getQuotedValueEndPosition(text, valueStart, end);
                         // We need pos to advance
                         pos = valueEnd;
                         // Handles cases where the quoted value is
@@ -492,16 +1258,14 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
                         // The position is OK (On a delimiter)
                         break;
                     default:
-                        if (version == 0 &&
-                                !isV0Separator((char)bytes[pos]) &&
-                                getAllowHttpSepsInV0() ||
-                                !isHttpSeparator((char)bytes[pos]) ||
-                                bytes[pos] == '=') {
+                        rejectControl(classes, text.at(pos));
+                        if ((classes[text.at(pos)] & (version == 0 ? B_VALUE_START_V0 : B_VALUE_START_V1)) != 0) {
                             // Token
                             valueStart = pos;
                             // getToken returns the position at the delimiter
                             // or other non-token character
-                            valueEnd = getTokenEndPosition(bytes, valueStart, end, version, false);
+                            valueEnd = getTokenEndPosition(classes, text, valueStart, end,
+                                    version == 0 ? B_VALUE_V0 : B_VALUE_V1);
                             // We need pos to advance
                             pos = valueEnd;
                             // Edge case. If value starts with '=' but this is not
@@ -515,6 +1279,7 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
                             // INVALID COOKIE, advance to next delimiter
                             // The starting character of the cookie value was
                             // not valid.
+                            cookies.invalid();
                             UserDataHelper.Mode logMode = userDataLog.getNextMode();
                             if (logMode != null) {
                                 String message = sm.getString(
@@ -531,14 +1296,14 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
                                         log.debug(message);
                                 }
                             }
-                            while (pos < end && bytes[pos] != ';' &&
-                                    bytes[pos] != ',')
+                            while (pos < end && text.at(pos) != ';' &&
+                                    text.at(pos) != ',')
                             {pos++; }
                             pos++;
                             // Make sure no special avpairs can be attributed to
                             // the previous cookie by setting the current cookie
                             // to null
-                            sc = null;
+                            current = false;
                             continue;
                         }
                 }
@@ -554,12 +1319,12 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
             // in a good state.
 
             // Skip whitespace
-            while (pos < end && isWhiteSpace(bytes[pos])) {pos++; }
+            while (pos < end && (classes[text.at(pos)] & B_WHITESPACE) != 0) {pos++; }
 
 
             // Make sure that after the cookie we have a separator. This
             // is only important if this is not the last cookie pair
-            while (pos < end && bytes[pos] != ';' && bytes[pos] != ',') {
+            while (pos < end && text.at(pos) != ';' && text.at(pos) != ',') {
                 pos++;
             }
 
@@ -570,11 +1335,11 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
             if (isSpecial) {
                 isSpecial = false;
                 // $Version must be the first avpair in the cookie header
-                // (sc must be null)
-                if (equals( "Version", bytes, nameStart, nameEnd) &&
-                        sc == null) {
+                // (no current cookie)
+                if (text.equals("Version", nameStart, nameEnd) &&
+                        !current) {
                     // Set version
-                    if( bytes[valueStart] =='1' && valueEnd == (valueStart+1)) {
+                    if (valueStart != -1 && text.at(valueStart) == '1' && valueEnd == (valueStart + 1)) {
                         version=1;
                     } else {
                         // unknown version (Versioning is not very strict)
@@ -583,34 +1348,31 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
                 }
 
                 // We need an active cookie for Path/Port/etc.
-                if (sc == null) {
+                if (!current) {
                     continue;
                 }
 
                 // Domain is more common, so it goes first
-                if (equals( "Domain", bytes, nameStart, nameEnd)) {
-                    sc.getDomain().setBytes( bytes,
-                            valueStart,
-                            valueEnd-valueStart);
+                if (text.equals("Domain", nameStart, nameEnd)) {
+                    cookies.setDomain(valueStart, valueEnd);
                     continue;
                 }
 
-                if (equals( "Path", bytes, nameStart, nameEnd)) {
-                    sc.getPath().setBytes( bytes,
-                            valueStart,
-                            valueEnd-valueStart);
+                if (text.equals("Path", nameStart, nameEnd)) {
+                    cookies.setPath(valueStart, valueEnd);
                     continue;
                 }
 
                 // v2 cookie attributes - skip them
-                if (equals( "Port", bytes, nameStart, nameEnd)) {
+                if (text.equals("Port", nameStart, nameEnd)) {
                     continue;
                 }
-                if (equals( "CommentURL", bytes, nameStart, nameEnd)) {
+                if (text.equals("CommentURL", nameStart, nameEnd)) {
                     continue;
                 }
 
                 // Unknown cookie, complain
+                cookies.invalid();
                 UserDataHelper.Mode logMode = userDataLog.getNextMode();
                 if (logMode != null) {
                     String message = sm.getString("cookies.invalidSpecial");
@@ -631,22 +1393,18 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
                     continue;
                 }
 
-                sc = serverCookies.addCookie();
-                sc.setVersion( version );
-                sc.getName().setBytes( bytes, nameStart,
-                        nameEnd-nameStart);
-
-                if (valueStart != -1) { // Normal AVPair
-                    sc.getValue().setBytes( bytes, valueStart,
-                            valueEnd-valueStart);
-                    if (isQuoted) {
-                        // We know this is a byte value so this is safe
-                        unescapeDoubleQuotes(sc.getValue().getByteChunk());
+                if (!budget.cookie(nameEnd - nameStart, valueStart == -1 ? 0 : valueEnd - valueStart)) {
+                    if (budget.isExhausted()) {
+                        return;
                     }
-                } else {
-                    // Name Only
-                    sc.getValue().setString("");
+                    // Too long, no special avpair can be attributed to it
+                    current = false;
+                    continue;
                 }
+
+                cookies.add(nameStart, nameEnd, valueStart, valueEnd, version,
+                        isQuoted ? CookieIndex.QUOTED : 0);
+                current = true;
                 continue;
             }
         }
@@ -656,149 +1414,64 @@ public class SameSiteLegacyCookieProcessor extends CookieProcessorBase implement
     /**
      * Given the starting position of a token, this gets the end of the
      * token, with no separator characters in between.
+     * <br>Runs of letters, digits and "+-._" can be skipped 8 bytes at a time,
+     * they are token characters whatever the settings.
      * JVK
      */
-    private final int getTokenEndPosition(byte bytes[], int off, int end,
-                                          int version, boolean isName){
+    private static int getTokenEndPosition(int[] classes, CookieHeaderText text, int off, int end, int tokenClass) {
         int pos = off;
-        while (pos < end &&
-                (!isHttpSeparator((char)bytes[pos]) ||
-                        version == 0 && getAllowHttpSepsInV0() && bytes[pos] != '=' &&
-                        !isV0Separator((char)bytes[pos]) ||
-                        !isName && bytes[pos] == '=' && getAllowEqualsInValue())) {
-            pos++;
-        }
-
-        if (pos > end) {
-            return end;
-        }
-        return pos;
-    }
-
-
-    private boolean isHttpSeparator(final char c) {
-        if (c < 0x20 || c >= 0x7f) {
-            if (c != 0x09) {
-                throw new IllegalArgumentException(
-                        "Control character in cookie value or attribute.");
+        while (pos < end) {
+            if (pos + 8 <= end && text.isTokenWord(pos)) {
+                pos += 8;
+                continue;
+            }
+            int wordEnd = Math.min(pos + 8, end);
+            while (pos < wordEnd && (classes[text.at(pos)] & tokenClass) != 0) {
+                pos++;
+            }
+            if (pos < wordEnd) {
+                rejectControl(classes, text.at(pos));
+                return pos;
             }
         }
-
-        return httpSeparatorFlags.get(c);
+        return end;
     }
 
 
-    /**
-     * Returns true if the byte is a separator as defined by V0 of the cookie
-     * spec.
-     */
-    private static boolean isV0Separator(final char c) {
-        if (c < 0x20 || c >= 0x7f) {
-            if (c != 0x09) {
-                throw new IllegalArgumentException(
-                        "Control character in cookie value or attribute.");
-            }
+    private static void rejectControl(int[] classes, int c) {
+        if ((classes[c] & B_CONTROL) != 0) {
+            throw new IllegalArgumentException(
+                    "Control character in cookie value or attribute.");
         }
-
-        return V0_SEPARATOR_FLAGS.get(c);
     }
 
 
     /**
      * Given a starting position after an initial quote character, this gets
      * the position of the end quote. This escapes anything after a '\' char
+     * <br>Words without quote nor backslash can be skipped 8 bytes at a time.
      * JVK RFC 2616
      */
-    private static final int getQuotedValueEndPosition(byte bytes[], int off, int end){
+    private static final int getQuotedValueEndPosition(CookieHeaderText text, int off, int end){
         int pos = off;
         while (pos < end) {
-            if (bytes[pos] == '"') {
-                return pos;
-            } else if (bytes[pos] == '\\' && pos < (end - 1)) {
-                pos+=2;
-            } else {
-                pos++;
+            if (pos + 8 <= end && text.isPlainWord(pos)) {
+                pos += 8;
+                continue;
+            }
+            int wordEnd = Math.min(pos + 8, end);
+            while (pos < wordEnd) {
+                int c = text.at(pos);
+                if (c == '"') {
+                    return pos;
+                } else if (c == '\\' && pos < (end - 1)) {
+                    pos+=2;
+                } else {
+                    pos++;
+                }
             }
         }
         // Error, we have reached the end of the header w/o a end quote
         return end;
     }
-
-
-    private static final boolean equals(String s, byte b[], int start, int end) {
-        int blen = end-start;
-        if (b == null || blen != s.length()) {
-            return false;
-        }
-        int boff = start;
-        for (int i = 0; i < blen; i++) {
-            if (b[boff++] != s.charAt(i)) {
-                return false;
-            }
-        }
-        return true;
-    }
-
-
-    /**
-     * Returns true if the byte is a whitespace character as
-     * defined in RFC2619
-     * JVK
-     */
-    private static final boolean isWhiteSpace(final byte c) {
-        // This switch statement is slightly slower
-        // for my vm than the if statement.
-        // Java(TM) 2 Runtime Environment, Standard Edition (build 1.5.0_07-164)
-        /*
-        switch (c) {
-        case ' ':;
-        case '\t':;
-        case '\n':;
-        case '\r':;
-        case '\f':;
-            return true;
-        default:;
-            return false;
-        }
-        */
-        if (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f') {
-            return true;
-        } else {
-            return false;
-        }
-    }
-
-
-    /**
-     * Unescapes any double quotes in the given cookie value.
-     *
-     * @param bc The cookie value to modify
-     */
-    private static final void unescapeDoubleQuotes(ByteChunk bc) {
-
-        if (bc == null || bc.getLength() == 0 || bc.indexOf('"', 0) == -1) {
-            return;
-        }
-
-        // Take a copy of the buffer so the original cookie header is not
-        // modified by this unescaping.
-        byte[] original = bc.getBuffer();
-        int len = bc.getLength();
-
-        byte[] copy = new byte[len];
-        System.arraycopy(original, bc.getStart(), copy, 0, len);
-
-        int src = 0;
-        int dest = 0;
-
-        while (src < len) {
-            if (copy[src] == '\\' && src < len && copy[src+1]  == '"') {
-                src++;
-            }
-            copy[dest] = copy[src];
-            dest ++;
-            src ++;
-        }
-        bc.setBytes(copy, 0, dest);
-    }
 }
@@ -1,29 +1,393 @@
 package com.barong.web.tomcat.util.http;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.http.MimeHeaders;
 import org.apache.tomcat.util.http.Rfc6265CookieProcessor;
 import org.apache.tomcat.util.http.SameSiteCookies;
+import org.apache.tomcat.util.http.ServerCookies;
+import org.apache.tomcat.util.res.StringManager;
 
 /**
  * Rfc6265CookieProcessor with custom SameSite flag appender
+ * <br>The header is generated here rather than by the parent class, so the SameSite and Secure
+ * attributes decided by {@link SameSiteCookieAppender} are rendered in the same buffer.
  */
 public class SameSiteRfc6265CookieProcessor extends Rfc6265CookieProcessor implements SameSiteCookieAppender {
 
+    private static final StringManager sm = StringManager.getManager("org.apache.tomcat.util.http");
+
+    private static final BitSet domainValid = new BitSet(128);
+
+    static {
+        for (char c = '0'; c <= '9'; c++) {
+            domainValid.set(c);
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            domainValid.set(c);
+        }
+        for (char c = 'A'; c <= 'Z'; c++) {
+            domainValid.set(c);
+        }
+        domainValid.set('.');
+        domainValid.set('-');
+    }
+
+    // Shared by all processors, validation does not depend on their settings
+    private static final CookieAttributes domains = new CookieAttributes("; Domain=",
+            SameSiteRfc6265CookieProcessor::validateDomain, CookieAttributes.DEFAULT_SIZE);
+
+    private static final CookieAttributes paths = new CookieAttributes("; Path=",
+            SameSiteRfc6265CookieProcessor::validatePath, CookieAttributes.DEFAULT_SIZE);
+
+    private boolean dualCookies = false;
+
+    private String legacyCookieSuffix = DualCookies.DEFAULT_LEGACY_SUFFIX;
+
+    private boolean threadLocalBuffers = true;
+
+    private final UserAgentClassifier userAgentClassifier = new UserAgentClassifier();
+
+    @Override
+    public void parseCookieHeader(MimeHeaders headers, ServerCookies serverCookies) {
+        if (!getDualCookies()) {
+            super.parseCookieHeader(headers, serverCookies);
+            return;
+        }
+        ServerCookies parsed = DualCookies.parsedCookies();
+        super.parseCookieHeader(headers, parsed);
+        DualCookies.merge(parsed, serverCookies, getLegacyCookieSuffix());
+    }
+
+    /**
+     * Same header as {@link Rfc6265CookieProcessor#generateHeader(Cookie, HttpServletRequest)},
+     * with SameSite and Secure attributes appended by {@link SameSiteCookieAppender} in the same buffer.
+     */
+    @Override
+    public String generateHeader(Cookie cookie, HttpServletRequest request) {
+        SameSiteCookies sameSiteCookiesValue = getSameSiteCookies();
+        boolean dualCookies = getDualCookies() && SameSiteCookies.NONE.equals(sameSiteCookiesValue);
+        // Only None depends on the request
+        boolean sameSiteNoneAllowed = !dualCookies && isSameSiteNoneAllowed(sameSiteCookiesValue, request);
+
+        StringBuilder header = HeaderBuilder.get(cookie, threadLocalBuffers);
+        appendHeader(header, cookie, sameSiteCookiesValue, sameSiteNoneAllowed, dualCookies,
+                System.currentTimeMillis());
+        return header.toString();
+    }
+
     /**
-     * Override SameSiteCookies to skip appending it by parent class
-     * @return SameSiteCookies.NONE
+     * Generates the Set-Cookie header values of all cookies of a response. The SameSite verdict
+     * and the current time are resolved once for the whole batch.
      */
     @Override
-    public SameSiteCookies getSameSiteCookies() {
-        return SameSiteCookies.NONE;
+    public List<String> generateHeaders(Collection<Cookie> cookies, HttpServletRequest request) {
+        SameSiteCookies sameSiteCookiesValue = getSameSiteCookies();
+        boolean dualCookies = getDualCookies() && SameSiteCookies.NONE.equals(sameSiteCookiesValue);
+        // Only None depends on the request
+        boolean sameSiteNoneAllowed = !dualCookies && isSameSiteNoneAllowed(sameSiteCookiesValue, request);
+        long now = System.currentTimeMillis();
+
+        List<String> headers = new ArrayList<>(cookies.size());
+        for (Cookie cookie : cookies) {
+            StringBuilder header = HeaderBuilder.get(cookie, threadLocalBuffers);
+            appendHeader(header, cookie, sameSiteCookiesValue, sameSiteNoneAllowed, dualCookies, now);
+            headers.add(header.toString());
+        }
+        return headers;
     }
 
     @Override
-    public String generateHeader(Cookie cookie, HttpServletRequest request) {
-        String header = super.generateHeader(cookie, request);
-        appendSameSite(super.getSameSiteCookies(), new StringBuffer(header), request);
-        return header;
+    public void generateHeader(Cookie cookie, HttpServletRequest request, ByteChunk header) {
+        SameSiteCookies sameSiteCookiesValue = getSameSiteCookies();
+        boolean dualCookies = getDualCookies() && SameSiteCookies.NONE.equals(sameSiteCookiesValue);
+        // Only None depends on the request
+        boolean sameSiteNoneAllowed = !dualCookies && isSameSiteNoneAllowed(sameSiteCookiesValue, request);
+
+        StringBuilder sb = HeaderBuilder.get(cookie, threadLocalBuffers);
+        appendHeader(sb, cookie, sameSiteCookiesValue, sameSiteNoneAllowed, dualCookies, System.currentTimeMillis());
+        HeaderBytes.append(header, sb);
+    }
+
+    private void appendHeader(StringBuilder header, Cookie cookie, SameSiteCookies sameSiteCookiesValue,
+                              boolean sameSiteNoneAllowed, boolean dualCookies, long now) {
+        header.append(cookie.getName());
+        header.append('=');
+        String value = cookie.getValue();
+        if (value != null && value.length() > 0) {
+            validateCookieValue(value);
+            header.append(value);
+        }
+
+        // RFC 6265 prefers Max-Age to Expires but some browsers only understand Expires, so send both
+        int maxAge = cookie.getMaxAge();
+        if (maxAge > -1) {
+            // Negative Max-Age is equivalent to no Max-Age
+            header.append("; Max-Age=");
+            header.append(maxAge);
+            // Wdy, DD-Mon-YY HH:MM:SS GMT ( Expires Netscape format )
+            header.append("; Expires=");
+            // To expire immediately we need to set the time in past
+            if (maxAge == 0) {
+                header.append(ANCIENT_DATE);
+            } else {
+                CookieDate.appendExpires(header, now, maxAge);
+            }
+        }
+
+        String domain = cookie.getDomain();
+        if (domain != null && domain.length() > 0) {
+            domains.append(header, domain);
+        }
+
+        String path = cookie.getPath();
+        if (path != null && path.length() > 0) {
+            paths.append(header, path);
+        }
+
+        if (cookie.getSecure()) {
+            header.append("; Secure");
+        }
+
+        if (cookie.isHttpOnly()) {
+            header.append("; HttpOnly");
+        }
+
+        if (dualCookies) {
+            appendDualSameSite(header, cookie);
+        } else {
+            appendSameSite(sameSiteCookiesValue, header, cookie, sameSiteNoneAllowed);
+        }
+    }
+
+    private void validateCookieValue(String value) {
+        int start = 0;
+        int end = value.length();
+
+        if (end > 1 && value.charAt(0) == '"' && value.charAt(end - 1) == '"') {
+            start = 1;
+            end--;
+        }
+
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c < 0x21 || c == 0x22 || c == 0x2c || c == 0x3b || c == 0x5c || c == 0x7f) {
+                throw new IllegalArgumentException(sm.getString(
+                        "rfc6265CookieProcessor.invalidCharInValue", Integer.toString(c)));
+            }
+        }
+    }
+
+    private static void validateDomain(String domain) {
+        int i = 0;
+        int prev = -1;
+        int cur = -1;
+        int len = domain.length();
+        while (i < len) {
+            prev = cur;
+            cur = domain.charAt(i);
+            if (!domainValid.get(cur)) {
+                throw new IllegalArgumentException(sm.getString(
+                        "rfc6265CookieProcessor.invalidDomain", domain));
+            }
+            // labels must start with a letter or number
+            if ((prev == '.' || prev == -1) && (cur == '.' || cur == '-')) {
+                throw new IllegalArgumentException(sm.getString(
+                        "rfc6265CookieProcessor.invalidDomain", domain));
+            }
+            // labels must end with a letter or number
+            if (prev == '-' && cur == '.') {
+                throw new IllegalArgumentException(sm.getString(
+                        "rfc6265CookieProcessor.invalidDomain", domain));
+            }
+            i++;
+        }
+        // domain must end with a label
+        if (cur == '.' || cur == '-') {
+            throw new IllegalArgumentException(sm.getString(
+                    "rfc6265CookieProcessor.invalidDomain", domain));
+        }
+    }
+
+    private static void validatePath(String path) {
+        int len = path.length();
+        for (int i = 0; i < len; i++) {
+            char ch = path.charAt(i);
+            if (ch < 0x20 || ch > 0x7E || ch == ';') {
+                throw new IllegalArgumentException(sm.getString(
+                        "rfc6265CookieProcessor.invalidPath", path));
+            }
+        }
+    }
+
+    @Override
+    public boolean getDualCookies() {
+        return dualCookies;
+    }
+
+    /**
+     * Enables the dual-cookie mode, the user-agent is not classified.
+     *
+     * @param dualCookies true to send SameSite=None cookies along with legacy fallback cookies
+     * @see SameSiteDualCookieFilter
+     */
+    public void setDualCookies(boolean dualCookies) {
+        this.dualCookies = dualCookies;
+    }
+
+    @Override
+    public String getLegacyCookieSuffix() {
+        return legacyCookieSuffix;
+    }
+
+    public void setLegacyCookieSuffix(String legacyCookieSuffix) {
+        if (legacyCookieSuffix == null || legacyCookieSuffix.isEmpty()) {
+            throw new IllegalArgumentException("legacyCookieSuffix must not be empty");
+        }
+        this.legacyCookieSuffix = legacyCookieSuffix;
+    }
+
+    public boolean getThreadLocalBuffers() {
+        return threadLocalBuffers;
+    }
+
+    /**
+     * Keeps a header buffer per thread (the default). Set to false when requests run on virtual threads:
+     * no state is then kept in ThreadLocals, each header is built in a buffer of its expected size.
+     *
+     * @param threadLocalBuffers false to allocate header buffers per call
+     */
+    public void setThreadLocalBuffers(boolean threadLocalBuffers) {
+        this.threadLocalBuffers = threadLocalBuffers;
+    }
+
+    public int getUserAgentCacheSize() {
+        return userAgentClassifier.getCacheSize();
+    }
+
+    /**
+     * Enables the bounded cache of user-agent verdicts.
+     *
+     * @param userAgentCacheSize maximum number of cached user-agents, 0 disables the cache
+     */
+    public void setUserAgentCacheSize(int userAgentCacheSize) {
+        userAgentClassifier.setCacheSize(userAgentCacheSize);
+    }
+
+    public long getUserAgentCacheHitCount() {
+        return userAgentClassifier.getCacheHitCount();
+    }
+
+    public long getUserAgentCacheMissCount() {
+        return userAgentClassifier.getCacheMissCount();
+    }
+
+    public long getUserAgentCacheEvictionCount() {
+        return userAgentClassifier.getCacheEvictionCount();
+    }
+
+    /**
+     * @return number of requests classified by user-agent client hints (Sec-CH-UA)
+     */
+    public long getClientHintsClassificationCount() {
+        return userAgentClassifier.getClientHintsCount();
+    }
+
+    /**
+     * @return number of requests classified by the user-agent string
+     */
+    public long getUserAgentClassificationCount() {
+        return userAgentClassifier.getUserAgentCount();
+    }
+
+    public double getUserAgentBypassThreshold() {
+        return userAgentClassifier.getBypassThreshold();
+    }
+
+    /**
+     * Enables the adaptive user-agent check: while the share of incompatible user-agents among
+     * sampled requests stays below this threshold, SameSite=None is emitted without classification.
+     *
+     * @param userAgentBypassThreshold incompatible rate, e.g. 0.001; 0 (default) disables the adaptive check
+     * @see AdaptiveUserAgentCheck
+     */
+    public void setUserAgentBypassThreshold(double userAgentBypassThreshold) {
+        userAgentClassifier.setBypassThreshold(userAgentBypassThreshold);
+    }
+
+    public double getUserAgentSampleRate() {
+        return userAgentClassifier.getSampleRate();
+    }
+
+    /**
+     * @param userAgentSampleRate share of requests sampled by the adaptive user-agent check, default 0.01
+     */
+    public void setUserAgentSampleRate(double userAgentSampleRate) {
+        userAgentClassifier.setSampleRate(userAgentSampleRate);
+    }
+
+    public int getUserAgentBypassWindow() {
+        return userAgentClassifier.getBypassWindow();
+    }
+
+    /**
+     * @param userAgentBypassWindow seconds of traffic the adaptive user-agent check looks at, default 300
+     */
+    public void setUserAgentBypassWindow(int userAgentBypassWindow) {
+        userAgentClassifier.setBypassWindow(userAgentBypassWindow);
+    }
+
+    public boolean getUserAgentBypassMBean() {
+        return userAgentClassifier.getBypassMBean();
+    }
+
+
+    /**
+     * @param userAgentBypassMBean true to register the adaptive user-agent check as an MBean of the
+     *                             platform MBeanServer, default false
+     */
+    public void setUserAgentBypassMBean(boolean userAgentBypassMBean) {
+        userAgentClassifier.setBypassMBean(userAgentBypassMBean);
+    }
+
+
+    public boolean isUserAgentCheckBypassed() {
+        return userAgentClassifier.isBypassing();
+    }
+
+    public String getUserAgentRulesFile() {
+        return userAgentClassifier.getRulesFile();
+    }
+
+    /**
+     * Replaces the built-in user-agent rules with rules loaded from a file.
+     *
+     * @param userAgentRulesFile path to the rules file, relative to catalina.base
+     * @see UserAgentRules
+     */
+    public void setUserAgentRulesFile(String userAgentRulesFile) {
+        userAgentClassifier.setRulesFile(userAgentRulesFile);
+    }
+
+    public int getUserAgentRulesCheckInterval() {
+        return userAgentClassifier.getRulesCheckInterval();
+    }
+
+    /**
+     * @param userAgentRulesCheckInterval seconds between checks of the rules file for changes, 0 disables reloading
+     */
+    public void setUserAgentRulesCheckInterval(int userAgentRulesCheckInterval) {
+        userAgentClassifier.setRulesCheckInterval(userAgentRulesCheckInterval);
+    }
+
+    @Override
+    public UserAgentClassifier getUserAgentClassifier() {
+        return userAgentClassifier;
     }
 }
@@ -0,0 +1,49 @@
+package com.barong.web.tomcat.util.http;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.coyote.Response;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.http.CookieProcessor;
+import org.apache.tomcat.util.http.MimeHeaders;
+
+/**
+ * Tomcat integration hook adding Set-Cookie headers to the Coyote response.
+ * <br>
+ * <br>With the SameSite processors of this package the header is written straight into the
+ * header value buffer, which is kept by Tomcat across requests: no String is created and nothing
+ * is encoded when the response is committed. Other processors go through {@link CookieProcessor#generateHeader}.
+ * <br>
+ * <br>Meant for integrations adding cookies on the Coyote response, e.g. a Valve or a response
+ * wrapper calling {@code addCookie(response.getCoyoteResponse(), context.getCookieProcessor(), cookie, request)}.
+ */
+public final class SetCookieHeaders {
+
+    private static final String SET_COOKIE_HEADER = "Set-Cookie";
+
+    private SetCookieHeaders() {
+    }
+
+    public static void addCookie(Response response, CookieProcessor cookieProcessor, Cookie cookie,
+                                 HttpServletRequest request) {
+        if (!(cookieProcessor instanceof SameSiteCookieAppender)) {
+            response.addHeader(SET_COOKIE_HEADER, cookieProcessor.generateHeader(cookie, request));
+            return;
+        }
+        MimeHeaders headers = response.getMimeHeaders();
+        MessageBytes value = headers.addValue(SET_COOKIE_HEADER);
+        ByteChunk header = value.getByteChunk();
+        header.recycle();
+        header.setLimit(-1);
+        try {
+            ((SameSiteCookieAppender) cookieProcessor).generateHeader(cookie, request, header);
+        } catch (RuntimeException e) {
+            // Invalid cookie: no header is left behind, as with Response.addCookie
+            headers.removeHeader(headers.size() - 1);
+            throw e;
+        }
+        value.setBytes(header.getBuffer(), header.getStart(), header.getLength());
+    }
+}
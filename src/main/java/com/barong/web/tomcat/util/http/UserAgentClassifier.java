@@ -0,0 +1,472 @@
+package com.barong.web.tomcat.util.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+
+/**
+ * Per cookie processor classification of user-agents incompatible with SameSite=None.
+ * <br>
+ * <br>Configured through attributes of the cookie processor, e.g.
+ * <br>{@code <CookieProcessor className="com.barong.web.tomcat.util.http.SameSiteLegacyCookieProcessor"
+ * sameSiteCookies="none" userAgentCacheSize="4096" userAgentRulesFile="conf/same-site.rules"/>}
+ * <br>
+ * <br>Without a rules file the built-in rules of {@link UserAgentScanner} are used. A rules file
+ * ({@link UserAgentRules}) is checked for changes every {@code userAgentRulesCheckInterval} seconds.
+ * <br>With {@code userAgentBypassThreshold} set, {@link AdaptiveUserAgentCheck} skips classification
+ * while incompatible clients are rare in the traffic, and {@code userAgentBypassMBean} exposes it in JMX.
+ * <br>Rules and cache are published together as one immutable snapshot, so request threads never lock
+ * and never see a verdict cached for other rules.
+ */
+class UserAgentClassifier {
+
+    private static final Log log = LogFactory.getLog(UserAgentClassifier.class);
+
+    private volatile State state = new State(null, 0);
+
+    private volatile File rulesFile;
+
+    private long rulesLastModified;
+
+    private long rulesLength;
+
+    private int rulesCheckInterval = 10;
+
+    private UserAgentRulesWatcher rulesWatcher;
+
+    private volatile AdaptiveUserAgentCheck adaptiveCheck;
+
+    private double bypassThreshold = 0;
+
+    private double sampleRate = 0.01;
+
+    private int bypassWindow = 300;
+
+    private boolean bypassMBean = false;
+
+    private ObjectName adaptiveCheckName;
+
+    private final LongAdder clientHintsCount = new LongAdder();
+
+    private final LongAdder userAgentCount = new LongAdder();
+
+    /**
+     * @return true if SameSite=None can be emitted without classifying this request
+     */
+    boolean bypass() {
+        AdaptiveUserAgentCheck adaptiveCheck = this.adaptiveCheck;
+        return adaptiveCheck != null && adaptiveCheck.bypass();
+    }
+
+    /**
+     * Feeds the verdict of a classified request to the adaptive check.
+     */
+    void record(boolean incompatible) {
+        AdaptiveUserAgentCheck adaptiveCheck = this.adaptiveCheck;
+        if (adaptiveCheck != null) {
+            adaptiveCheck.record(incompatible);
+        }
+    }
+
+    /**
+     * @param secChUa value of the Sec-CH-UA header, may be null
+     * @return verdict or null if the user-agent has to be classified
+     */
+    Boolean classifyClientHints(CharSequence secChUa) {
+        Boolean incompatible = ClientHints.isSameSiteNoneIncompatible(secChUa);
+        if (incompatible != null) {
+            clientHintsCount.increment();
+        }
+        return incompatible;
+    }
+
+    /**
+     * @param secChUa Sec-CH-UA header, may be null
+     * @return verdict or null if the user-agent has to be classified
+     */
+    Boolean classifyClientHints(MessageBytes secChUa) {
+        return secChUa == null || secChUa.isNull() ? null : classifyClientHints(charsOf(secChUa));
+    }
+
+    boolean isSameSiteNoneIncompatible(CharSequence userAgent) {
+        userAgentCount.increment();
+        State state = this.state;
+        UserAgentVerdictCache cache = state.cache;
+        if (cache == null) {
+            return state.isSameSiteNoneIncompatible(userAgent);
+        }
+        long hash = UserAgentHash.hash(userAgent);
+        Boolean incompatible = cache.get(hash);
+        if (incompatible == null) {
+            incompatible = state.isSameSiteNoneIncompatible(userAgent);
+            cache.put(hash, incompatible);
+        }
+        return incompatible;
+    }
+
+    /**
+     * Classifies the user-agent header as received, without decoding its bytes into a String.
+     * With the cache enabled a hit costs a hash of the bytes and no allocation at all.
+     */
+    boolean isSameSiteNoneIncompatible(MessageBytes userAgent) {
+        if (userAgent.getType() != MessageBytes.T_BYTES) {
+            return isSameSiteNoneIncompatible(charsOf(userAgent));
+        }
+        userAgentCount.increment();
+        ByteChunk bc = userAgent.getByteChunk();
+        State state = this.state;
+        UserAgentVerdictCache cache = state.cache;
+        if (cache == null) {
+            return state.isSameSiteNoneIncompatible(new Latin1CharSequence(bc.getBuffer(), bc.getStart(), bc.getLength()));
+        }
+        long hash = UserAgentHash.hash(bc.getBuffer(), bc.getStart(), bc.getLength());
+        Boolean incompatible = cache.get(hash);
+        if (incompatible == null) {
+            incompatible = state.isSameSiteNoneIncompatible(
+                    new Latin1CharSequence(bc.getBuffer(), bc.getStart(), bc.getLength()));
+            cache.put(hash, incompatible);
+        }
+        return incompatible;
+    }
+
+    /**
+     * @return maximum number of cached verdicts, 0 if the cache is disabled
+     */
+    int getCacheSize() {
+        UserAgentVerdictCache cache = state.cache;
+        return cache == null ? 0 : cache.getMaximumSize();
+    }
+
+    /**
+     * @param cacheSize maximum number of cached verdicts, 0 or less disables the cache
+     */
+    synchronized void setCacheSize(int cacheSize) {
+        state = new State(state.rules, cacheSize);
+    }
+
+    long getCacheHitCount() {
+        UserAgentVerdictCache cache = state.cache;
+        return cache == null ? 0 : cache.getHitCount();
+    }
+
+    long getCacheMissCount() {
+        UserAgentVerdictCache cache = state.cache;
+        return cache == null ? 0 : cache.getMissCount();
+    }
+
+    long getCacheEvictionCount() {
+        UserAgentVerdictCache cache = state.cache;
+        return cache == null ? 0 : cache.getEvictionCount();
+    }
+
+    long getClientHintsCount() {
+        return clientHintsCount.sum();
+    }
+
+    long getUserAgentCount() {
+        return userAgentCount.sum();
+    }
+
+    double getBypassThreshold() {
+        return bypassThreshold;
+    }
+
+    /**
+     * @param bypassThreshold incompatible rate below which user-agents are not classified, 0 disables the adaptive check
+     */
+    synchronized void setBypassThreshold(double bypassThreshold) {
+        this.bypassThreshold = bypassThreshold;
+        updateAdaptiveCheck();
+    }
+
+    double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @param sampleRate share of requests recorded (and classified while bypassing) by the adaptive check
+     */
+    synchronized void setSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+        updateAdaptiveCheck();
+    }
+
+    int getBypassWindow() {
+        return bypassWindow;
+    }
+
+    /**
+     * @param bypassWindow length in seconds of the sliding window of the adaptive check
+     */
+    synchronized void setBypassWindow(int bypassWindow) {
+        this.bypassWindow = bypassWindow;
+        updateAdaptiveCheck();
+    }
+
+    boolean isBypassing() {
+        AdaptiveUserAgentCheck adaptiveCheck = this.adaptiveCheck;
+        return adaptiveCheck != null && adaptiveCheck.isBypassing();
+    }
+
+    boolean getBypassMBean() {
+        return bypassMBean;
+    }
+
+    /**
+     * @param bypassMBean true to register the adaptive check in the platform MBeanServer
+     */
+    synchronized void setBypassMBean(boolean bypassMBean) {
+        this.bypassMBean = bypassMBean;
+        updateAdaptiveCheck();
+    }
+
+    ObjectName getAdaptiveCheckName() {
+        return adaptiveCheckName;
+    }
+
+    private void updateAdaptiveCheck() {
+        if (adaptiveCheckName != null) {
+            AdaptiveCheckView.unregister(adaptiveCheckName);
+            adaptiveCheckName = null;
+        }
+        AdaptiveCheckView.unregisterCollected();
+        if (bypassThreshold <= 0) {
+            adaptiveCheck = null;
+            return;
+        }
+        AdaptiveUserAgentCheck adaptiveCheck = new AdaptiveUserAgentCheck(sampleRate, bypassThreshold, bypassWindow);
+        this.adaptiveCheck = adaptiveCheck;
+        if (bypassMBean) {
+            try {
+                adaptiveCheckName = AdaptiveCheckView.register(adaptiveCheck, new ObjectName(
+                        "com.barong.web.tomcat:type=AdaptiveUserAgentCheck,processor=" +
+                        Integer.toHexString(System.identityHashCode(this))));
+            } catch (JMException e) {
+                log.warn("Can not register adaptive user-agent check in JMX", e);
+            }
+        }
+    }
+
+    String getRulesFile() {
+        File rulesFile = this.rulesFile;
+        return rulesFile == null ? null : rulesFile.getPath();
+    }
+
+    /**
+     * Loads the rules and starts watching the file.
+     *
+     * @param rulesFile path to the rules file, relative paths are resolved against catalina.base;
+     *                  null or empty restores the built-in rules
+     * @throws IllegalArgumentException if the file can not be read or parsed
+     */
+    synchronized void setRulesFile(String rulesFile) {
+        stopWatching();
+        if (rulesFile == null || rulesFile.isEmpty()) {
+            this.rulesFile = null;
+            state = new State(null, getCacheSize());
+            return;
+        }
+        File file = new File(rulesFile);
+        if (!file.isAbsolute()) {
+            file = new File(System.getProperty("catalina.base", ""), rulesFile);
+        }
+        long lastModified = file.lastModified();
+        long length = file.length();
+        UserAgentRules rules;
+        try {
+            rules = UserAgentRules.load(file);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Can not load user-agent rules from " + file, e);
+        }
+        this.rulesFile = file;
+        rulesLastModified = lastModified;
+        rulesLength = length;
+        state = new State(rules, getCacheSize());
+        log.info("Loaded " + rules.size() + " user-agent rules from " + file);
+        startWatching();
+    }
+
+    int getRulesCheckInterval() {
+        return rulesCheckInterval;
+    }
+
+    /**
+     * @param rulesCheckInterval seconds between checks of the rules file, 0 or less disables reloading
+     */
+    synchronized void setRulesCheckInterval(int rulesCheckInterval) {
+        this.rulesCheckInterval = rulesCheckInterval;
+        stopWatching();
+        startWatching();
+    }
+
+    /**
+     * Reloads the rules file if it has been modified. Invalid files are logged and ignored,
+     * the previous rules stay in use.
+     *
+     * @return true if new rules have been loaded
+     */
+    synchronized boolean reloadRules() {
+        File file = rulesFile;
+        if (file == null) {
+            return false;
+        }
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (lastModified == rulesLastModified && length == rulesLength) {
+            return false;
+        }
+        rulesLastModified = lastModified;
+        rulesLength = length;
+        UserAgentRules rules;
+        try {
+            rules = UserAgentRules.load(file);
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Can not reload user-agent rules from " + file + ", previous rules are kept.", e);
+            return false;
+        }
+        state = new State(rules, getCacheSize());
+        log.info("Reloaded " + rules.size() + " user-agent rules from " + file);
+        return true;
+    }
+
+    private void startWatching() {
+        if (rulesFile != null && rulesCheckInterval > 0) {
+            rulesWatcher = UserAgentRulesWatcher.start(this, rulesCheckInterval);
+        }
+    }
+
+    private void stopWatching() {
+        if (rulesWatcher != null) {
+            rulesWatcher.stop();
+            rulesWatcher = null;
+        }
+    }
+
+    private static CharSequence charsOf(MessageBytes value) {
+        switch (value.getType()) {
+            case MessageBytes.T_BYTES:
+                ByteChunk bc = value.getByteChunk();
+                return new Latin1CharSequence(bc.getBuffer(), bc.getStart(), bc.getLength());
+            case MessageBytes.T_CHARS:
+                return value.getCharChunk();
+            default:
+                return value.toString();
+        }
+    }
+
+    /**
+     * Rules together with the verdicts cached for them.
+     */
+    private static final class State {
+
+        final UserAgentRules rules;
+
+        final UserAgentVerdictCache cache;
+
+        State(UserAgentRules rules, int cacheSize) {
+            this.rules = rules;
+            this.cache = cacheSize > 0 ? new UserAgentVerdictCache(cacheSize) : null;
+        }
+
+        boolean isSameSiteNoneIncompatible(CharSequence userAgent) {
+            return rules == null ? UserAgentScanner.isSameSiteNoneIncompatible(userAgent) :
+                    rules.isSameSiteNoneIncompatible(userAgent);
+        }
+    }
+
+    /**
+     * JMX view of an adaptive check that does not keep the check, nor its cookie processor, reachable.
+     * Cookie processors have no lifecycle, so the views of collected checks are unregistered when
+     * they are read or when another check is registered.
+     */
+    private static final class AdaptiveCheckView implements AdaptiveUserAgentCheckMBean {
+
+        private static final Map<ObjectName, AdaptiveCheckView> views = new ConcurrentHashMap<>();
+
+        private final WeakReference<AdaptiveUserAgentCheck> check;
+
+        private final ObjectName name;
+
+        private AdaptiveCheckView(AdaptiveUserAgentCheck check, ObjectName name) {
+            this.check = new WeakReference<>(check);
+            this.name = name;
+        }
+
+        static ObjectName register(AdaptiveUserAgentCheck check, ObjectName name) throws JMException {
+            AdaptiveCheckView view = new AdaptiveCheckView(check, name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(view, AdaptiveUserAgentCheckMBean.class), name);
+            views.put(name, view);
+            return name;
+        }
+
+        static void unregister(ObjectName name) {
+            views.remove(name);
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                log.debug("Can not unregister " + name, e);
+            }
+        }
+
+        static void unregisterCollected() {
+            for (AdaptiveCheckView view : views.values()) {
+                if (view.check.get() == null) {
+                    unregister(view.name);
+                }
+            }
+        }
+
+        private AdaptiveUserAgentCheck check() {
+            AdaptiveUserAgentCheck check = this.check.get();
+            if (check == null) {
+                unregister(name);
+                throw new IllegalStateException("The cookie processor of " + name + " has been discarded");
+            }
+            return check;
+        }
+
+        @Override
+        public boolean isBypassing() {
+            return check().isBypassing();
+        }
+
+        @Override
+        public double getIncompatibleRate() {
+            return check().getIncompatibleRate();
+        }
+
+        @Override
+        public long getWindowSampleCount() {
+            return check().getWindowSampleCount();
+        }
+
+        @Override
+        public long getModeSwitchCount() {
+            return check().getModeSwitchCount();
+        }
+
+        @Override
+        public double getSampleRate() {
+            return check().getSampleRate();
+        }
+
+        @Override
+        public double getThreshold() {
+            return check().getThreshold();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.barong.web.tomcat.util.http;
+
+import java.security.SecureRandom;
+
+/**
+ * 64-bit hash of user-agent header values, keying the verdict cache.
+ * <br>
+ * <br>Bytes and ISO-8859-1 characters hash to the same value, so a header hashed directly on its
+ * {@code ByteChunk} and the same header as a String share one cache entry. The seed is random per
+ * JVM, so colliding user-agents can not be prepared in advance to poison the cache.
+ */
+final class UserAgentHash {
+
+    private static final long SEED = new SecureRandom().nextLong();
+
+    private static final long C1 = 0x87c37b91114253d5L;
+
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private UserAgentHash() {
+    }
+
+    static long hash(CharSequence value) {
+        int len = value.length();
+        long h = SEED ^ len;
+        int i = 0;
+        for (; i + 4 <= len; i += 4) {
+            h = mix(h, value.charAt(i) | (long) value.charAt(i + 1) << 16 |
+                    (long) value.charAt(i + 2) << 32 | (long) value.charAt(i + 3) << 48);
+        }
+        long tail = 0;
+        for (int shift = 0; i < len; i++, shift += 16) {
+            tail |= (long) value.charAt(i) << shift;
+        }
+        return finish(mix(h, tail));
+    }
+
+    static long hash(byte[] bytes, int off, int len) {
+        long h = SEED ^ len;
+        int end = off + len;
+        int i = off;
+        for (; i + 4 <= end; i += 4) {
+            h = mix(h, (bytes[i] & 0xff) | (long) (bytes[i + 1] & 0xff) << 16 |
+                    (long) (bytes[i + 2] & 0xff) << 32 | (long) (bytes[i + 3] & 0xff) << 48);
+        }
+        long tail = 0;
+        for (int shift = 0; i < end; i++, shift += 16) {
+            tail |= (long) (bytes[i] & 0xff) << shift;
+        }
+        return finish(mix(h, tail));
+    }
+
+    // MurmurHash3 x64 block and finalization steps
+    private static long mix(long h, long word) {
+        word *= C1;
+        word = Long.rotateLeft(word, 31);
+        word *= C2;
+        h ^= word;
+        return Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+    }
+
+    private static long finish(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
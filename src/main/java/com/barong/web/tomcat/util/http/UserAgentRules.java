@@ -0,0 +1,420 @@
+package com.barong.web.tomcat.util.http;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable set of rules describing user-agents incompatible with SameSite=None, loaded from a text file.
+ * <br>
+ * <br>One rule per line, a user-agent is incompatible if all conditions of any rule match:
+ * <br>{@code <name>: <condition> [<condition> ...]}
+ * <br>
+ * <br>Conditions:
+ * <br>{@code "token"} - user-agent contains the token
+ * <br>{@code !"token"} - user-agent does not contain the token
+ * <br>{@code ^"token"} - user-agent starts with the token
+ * <br>{@code "token"$} - user-agent ends with the token
+ * <br>{@code "token"<op><version>} - version following the first occurrence of the token
+ * (that is followed by a digit) compares with the given version, op is one of
+ * {@code < <= = != >= >}. Version components may be separated by '.' or '_', only as
+ * many components as the rule gives are compared, e.g. {@code "Mac OS X "=10.14} matches 10_14_6,
+ * and a version with fewer components is no version, e.g. {@code "Mac OS X "=10.14} does not match 10.
+ * <br>{@code !"token"<op><version>} - there is no such version, or it does not compare with the given one
+ * <br>Lines starting with '#' are comments.
+ * <br>
+ * <br>Example:
+ * <br>{@code ios12: "(iP" "; CPU " "OS "=12 ") AppleWebKit/"}
+ * <br>{@code uc: "UCBrowser/"<12.13.2}
+ * <br>
+ * <br>All tokens are compiled into one Aho-Corasick automaton, so a single pass over the user-agent
+ * finds every token and version needed by every rule. Anchored tokens are compared in place.
+ * <br>
+ * <br>Tokens match anywhere and in any order, and a version needs no particular character after it.
+ * Rules are therefore looser than the regular expressions of {@link UserAgentScanner}, see
+ * same-site-incompatible-clients.rules for where the bundled rules differ from them.
+ */
+final class UserAgentRules {
+
+    private static final int CONTAINS = 0;
+    private static final int STARTS = 1;
+    private static final int ENDS = 2;
+    private static final int VERSION = 3;
+
+    private static final String[] OPERATORS = {"<=", ">=", "!=", "<", ">", "="};
+
+    private static final int[] NO_OUTPUT = new int[0];
+
+    private static final int MISSING = Integer.MIN_VALUE;
+
+    private final String[] tokens;
+
+    private final Rule[] rules;
+
+    private final int[] charClasses = new int[256];
+
+    private final int classCount;
+
+    private final int[] transitions;
+
+    private final int[][] outputs;
+
+    private UserAgentRules(String[] tokens, Rule[] rules) {
+        this.tokens = tokens;
+        this.rules = rules;
+
+        // Only characters used by tokens need their own column in the transition table
+        int classes = 1;
+        for (String token : tokens) {
+            for (int i = 0; i < token.length(); i++) {
+                char c = token.charAt(i);
+                if (charClasses[c] == 0) {
+                    charClasses[c] = classes++;
+                }
+            }
+        }
+        classCount = classes;
+
+        // Trie
+        List<Map<Integer, Integer>> trie = new ArrayList<>();
+        List<int[]> output = new ArrayList<>();
+        trie.add(new HashMap<>());
+        output.add(NO_OUTPUT);
+        for (int t = 0; t < tokens.length; t++) {
+            int state = 0;
+            for (int i = 0; i < tokens[t].length(); i++) {
+                int c = charClasses[tokens[t].charAt(i)];
+                Integer next = trie.get(state).get(c);
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new HashMap<>());
+                    output.add(NO_OUTPUT);
+                    trie.get(state).put(c, next);
+                }
+                state = next;
+            }
+            output.set(state, append(output.get(state), t));
+        }
+
+        // Failure links folded into a complete transition table, breadth first
+        int states = trie.size();
+        transitions = new int[states * classCount];
+        int[] fail = new int[states];
+        Deque<Integer> queue = new ArrayDeque<>();
+        for (Map.Entry<Integer, Integer> edge : trie.get(0).entrySet()) {
+            transitions[edge.getKey()] = edge.getValue();
+            queue.add(edge.getValue());
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int c = 0; c < classCount; c++) {
+                Integer next = trie.get(state).get(c);
+                if (next == null) {
+                    transitions[state * classCount + c] = transitions[fail[state] * classCount + c];
+                } else {
+                    fail[next] = transitions[fail[state] * classCount + c];
+                    output.set(next, concat(output.get(next), output.get(fail[next])));
+                    transitions[state * classCount + c] = next;
+                    queue.add(next);
+                }
+            }
+        }
+        outputs = output.toArray(new int[0][]);
+    }
+
+    static UserAgentRules load(File file) throws IOException {
+        try (Reader reader = new InputStreamReader(Files.newInputStream(file.toPath()), StandardCharsets.UTF_8)) {
+            return parse(reader);
+        }
+    }
+
+    static UserAgentRules parse(Reader reader) throws IOException {
+        Map<String, Integer> tokens = new LinkedHashMap<>();
+        List<Rule> rules = new ArrayList<>();
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            try {
+                rules.add(parseRule(line, tokens));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid rule at line " + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+        return new UserAgentRules(tokens.keySet().toArray(new String[0]), rules.toArray(new Rule[0]));
+    }
+
+    private static Rule parseRule(String line, Map<String, Integer> tokens) {
+        int colon = line.indexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("rule name expected");
+        }
+        String name = line.substring(0, colon).trim();
+        List<Condition> conditions = new ArrayList<>();
+        int pos = colon + 1;
+        int len = line.length();
+        while (true) {
+            while (pos < len && Character.isWhitespace(line.charAt(pos))) {
+                pos++;
+            }
+            if (pos >= len) {
+                break;
+            }
+            boolean negated = line.charAt(pos) == '!';
+            if (negated) {
+                pos++;
+            }
+            boolean starts = pos < len && line.charAt(pos) == '^';
+            if (starts) {
+                pos++;
+            }
+            if (pos >= len || line.charAt(pos) != '"') {
+                throw new IllegalArgumentException("quoted token expected at " + pos);
+            }
+            int end = line.indexOf('"', pos + 1);
+            if (end <= pos + 1) {
+                throw new IllegalArgumentException("non empty quoted token expected at " + pos);
+            }
+            String token = line.substring(pos + 1, end);
+            for (int i = 0; i < token.length(); i++) {
+                if (token.charAt(i) > 0xff) {
+                    throw new IllegalArgumentException("token is not ISO-8859-1: " + token);
+                }
+            }
+            pos = end + 1;
+            boolean ends = pos < len && line.charAt(pos) == '$';
+            if (starts || ends) {
+                if (ends) {
+                    pos++;
+                }
+                conditions.add(new Condition(-1, token, starts ? STARTS : ENDS, negated, null, null));
+                continue;
+            }
+            Integer index = tokens.get(token);
+            if (index == null) {
+                index = tokens.size();
+                tokens.put(token, index);
+            }
+
+            String operator = null;
+            for (String candidate : OPERATORS) {
+                if (line.startsWith(candidate, pos)) {
+                    operator = candidate;
+                    break;
+                }
+            }
+            if (operator == null) {
+                conditions.add(new Condition(index, token, CONTAINS, negated, null, null));
+                continue;
+            }
+            pos += operator.length();
+            int versionStart = pos;
+            while (pos < len && !Character.isWhitespace(line.charAt(pos))) {
+                pos++;
+            }
+            conditions.add(new Condition(index, token, VERSION, negated, operator,
+                    parseVersion(line.substring(versionStart, pos))));
+        }
+        if (conditions.isEmpty()) {
+            throw new IllegalArgumentException("rule " + name + " has no conditions");
+        }
+        return new Rule(name, conditions.toArray(new Condition[0]));
+    }
+
+    private static int[] parseVersion(String version) {
+        String[] parts = version.split("[._]", -1);
+        int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            try {
+                result[i] = Integer.parseInt(parts[i]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid version: " + version, e);
+            }
+            if (result[i] < 0) {
+                throw new IllegalArgumentException("invalid version: " + version);
+            }
+        }
+        return result;
+    }
+
+    boolean isSameSiteNoneIncompatible(CharSequence userAgent) {
+        // [2 * t] end of the first occurrence of token t, [2 * t + 1] end of the first one followed by a digit
+        int[] found = new int[tokens.length * 2];
+        Arrays.fill(found, -1);
+        int len = userAgent.length();
+        int state = 0;
+        for (int i = 0; i < len; i++) {
+            char c = userAgent.charAt(i);
+            state = transitions[state * classCount + (c < 256 ? charClasses[c] : 0)];
+            for (int t : outputs[state]) {
+                if (found[2 * t] < 0) {
+                    found[2 * t] = i + 1;
+                }
+                if (found[2 * t + 1] < 0 && i + 1 < len && isDigit(userAgent.charAt(i + 1))) {
+                    found[2 * t + 1] = i + 1;
+                }
+            }
+        }
+        for (Rule rule : rules) {
+            if (rule.matches(userAgent, found)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int size() {
+        return rules.length;
+    }
+
+    /**
+     * @return comparison of the version at pos with the given one, MISSING if it has fewer components
+     */
+    private static int compareVersion(CharSequence userAgent, int pos, int[] version) {
+        int len = userAgent.length();
+        int result = 0;
+        for (int i = 0; i < version.length; i++) {
+            if (i > 0) {
+                char separator = pos < len ? userAgent.charAt(pos) : 0;
+                if (separator != '.' && separator != '_' || pos + 1 >= len || !isDigit(userAgent.charAt(pos + 1))) {
+                    return MISSING;
+                }
+                pos++;
+            }
+            int actual = 0;
+            while (pos < len && isDigit(userAgent.charAt(pos))) {
+                actual = actual > (Integer.MAX_VALUE - 9) / 10 ? Integer.MAX_VALUE :
+                        actual * 10 + userAgent.charAt(pos) - '0';
+                pos++;
+            }
+            if (result == 0 && actual != version[i]) {
+                result = actual < version[i] ? -1 : 1;
+            }
+        }
+        return result;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int[] append(int[] array, int value) {
+        int[] result = Arrays.copyOf(array, array.length + 1);
+        result[array.length] = value;
+        return result;
+    }
+
+    private static int[] concat(int[] first, int[] second) {
+        if (second.length == 0) {
+            return first;
+        }
+        int[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static final class Rule {
+
+        final String name;
+
+        final Condition[] conditions;
+
+        Rule(String name, Condition[] conditions) {
+            this.name = name;
+            this.conditions = conditions;
+        }
+
+        boolean matches(CharSequence userAgent, int[] found) {
+            for (Condition condition : conditions) {
+                if (!condition.matches(userAgent, found)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static final class Condition {
+
+        final int token;
+
+        final String text;
+
+        final int kind;
+
+        final boolean negated;
+
+        final String operator;
+
+        final int[] version;
+
+        Condition(int token, String text, int kind, boolean negated, String operator, int[] version) {
+            this.token = token;
+            this.text = text;
+            this.kind = kind;
+            this.negated = negated;
+            this.operator = operator;
+            this.version = version;
+        }
+
+        boolean matches(CharSequence userAgent, int[] found) {
+            return test(userAgent, found) != negated;
+        }
+
+        private boolean test(CharSequence userAgent, int[] found) {
+            switch (kind) {
+                case CONTAINS:
+                    return found[2 * token] >= 0;
+                case STARTS:
+                    return UserAgentScanner.regionMatches(userAgent, 0, text);
+                case ENDS:
+                    return UserAgentScanner.regionMatches(userAgent, userAgent.length() - text.length(), text);
+                default:
+                    int pos = found[2 * token + 1];
+                    if (pos < 0) {
+                        return false;
+                    }
+                    int result = compareVersion(userAgent, pos, version);
+                    if (result == MISSING) {
+                        return false;
+                    }
+                    switch (operator) {
+                        case "<":
+                            return result < 0;
+                        case "<=":
+                            return result <= 0;
+                        case "=":
+                            return result == 0;
+                        case "!=":
+                            return result != 0;
+                        case ">=":
+                            return result >= 0;
+                        default:
+                            return result > 0;
+                    }
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.barong.web.tomcat.util.http;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically asks a {@link UserAgentClassifier} to reload its rules file.
+ * <br>
+ * <br>All watchers share one daemon thread. The classifier is only weakly referenced,
+ * so a discarded cookie processor stops its watcher instead of being kept alive by it.
+ */
+final class UserAgentRulesWatcher implements Runnable {
+
+    private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "SameSiteUserAgentRulesWatcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final WeakReference<UserAgentClassifier> classifier;
+
+    private volatile ScheduledFuture<?> future;
+
+    private UserAgentRulesWatcher(UserAgentClassifier classifier) {
+        this.classifier = new WeakReference<>(classifier);
+    }
+
+    static UserAgentRulesWatcher start(UserAgentClassifier classifier, int intervalSeconds) {
+        UserAgentRulesWatcher watcher = new UserAgentRulesWatcher(classifier);
+        watcher.future = executor.scheduleWithFixedDelay(watcher, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        return watcher;
+    }
+
+    void stop() {
+        ScheduledFuture<?> future = this.future;
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    @Override
+    public void run() {
+        UserAgentClassifier classifier = this.classifier.get();
+        if (classifier == null) {
+            stop();
+            return;
+        }
+        classifier.reloadRules();
+    }
+}
@@ -0,0 +1,662 @@
+package com.barong.web.tomcat.util.http;
+
+/**
+ * Hand-written replacement for the user-agent regular expressions of
+ * {@link SameSiteCookieAppender}.
+ * <br>
+ * <br>Every method gives exactly the same answer as the corresponding regular expression from
+ * <a href="https://www.chromium.org/updates/same-site/incompatible-clients">https://www.chromium.org/updates/same-site/incompatible-clients</a>
+ * (including the greedy/leftmost match rules, and the line terminators that {@code .} does not match),
+ * but nothing is compiled and nothing is allocated.
+ * <br>{@link #canonicalKey(CharSequence)} reads the user-agent once, from left to right, and packs
+ * everything the rules read into a long; the verdict is a function of that key only. The per-rule
+ * methods are used by the static wrappers in {@link SameSiteCookieAppender} and search for their
+ * own tokens only.
+ */
+final class UserAgentScanner {
+
+    private static final String IOS_START = "(iP";
+    private static final String IOS_CPU = "; CPU ";
+    private static final String IOS_OS = "OS ";
+    private static final String MACOS_START = "(Macintosh;";
+    private static final String MACOS_OS = "Mac OS X ";
+    private static final String APPLE_WEBKIT = ") AppleWebKit/";
+    private static final String SAFARI_VERSION = "Version/";
+    private static final String SAFARI = " Safari/";
+    private static final String CHROM = "Chrom";
+    private static final String UC_BROWSER = "UCBrowser/";
+    private static final String MOZILLA = "Mozilla/";
+    private static final String MACINTOSH = " (Macintosh;";
+    private static final String KHTML = " (KHTML, like Gecko)";
+
+    // Canonical key layout, versions are stored as value + 1 so 0 means "no version"
+    private static final int IOS_MAJOR_SHIFT = 0;
+    private static final int MACOS_MAJOR_SHIFT = 8;
+    private static final int MACOS_MINOR_SHIFT = 16;
+    private static final int CHROMIUM_MAJOR_SHIFT = 24;
+    private static final int UC_MAJOR_SHIFT = 34;
+    private static final int UC_MINOR_SHIFT = 42;
+    private static final int UC_BUILD_SHIFT = 50;
+    private static final long SAFARI_FLAG = 1L << 58;
+    private static final long CHROMIUM_FLAG = 1L << 59;
+    private static final long UC_FLAG = 1L << 60;
+    private static final long MAC_EMBEDDED_FLAG = 1L << 61;
+
+    private static final int BYTE_FIELD = 8;
+    private static final int CHROMIUM_FIELD = 10;
+
+    private UserAgentScanner() {
+    }
+
+    /**
+     * Single pass equivalent of {@code hasWebKitSameSiteBug(ua) || dropsUnrecognizedSameSiteCookies(ua)}.
+     */
+    static boolean isSameSiteNoneIncompatible(CharSequence ua) {
+        return isSameSiteNoneIncompatible(canonicalKey(ua));
+    }
+
+    /**
+     * Reads the user-agent once and keeps only what the rules read: iOS major, macOS major and minor,
+     * Chromium major, UC Browser version and the Safari / Chromium / UC / macOS embedded browser flags.
+     * Build numbers, locales and other tokens are dropped, so user-agents with the same verdict
+     * for the same reason share one key.
+     * <br>Versions that can not be told apart by the rules are folded: iOS and macOS versions other
+     * than 0..253 without leading zeros, Chromium majors from 1022 and UC Browser components from 253.
+     */
+    static long canonicalKey(CharSequence ua) {
+        int len = ua.length();
+        int iosStart = -1;
+        int iosCpu = -1;
+        int iosDigits = -1;
+        int lastIosDigits = -1;
+        int macStart = -1;
+        int macDigits = -1;
+        int lastMacDigits = -1;
+        int safariVersion = -1;
+        boolean safari = false;
+        boolean chromium = false;
+        int chromiumDigits = -1;
+        boolean uc = false;
+        int ucDigits = -1;
+        int iosVersion = -1;
+        int macVersion = -1;
+
+        // The end of the user-agent ends its last line
+        for (int i = 0; i <= len; i++) {
+            switch (i < len ? ua.charAt(i) : '\n') {
+                case '\n':
+                case '\r':
+                case '\u0085':
+                case '\u2028':
+                case '\u2029':
+                    // ".*" does not match line terminators: the first line the OS version rules match in
+                    // gives the version, Safari tokens must be on one line
+                    if (iosVersion < 0 && iosDigits >= 0 && iosCpu >= 0 &&
+                            iosCpu + IOS_CPU.length() <= iosDigits - IOS_OS.length()) {
+                        iosVersion = iosDigits;
+                    }
+                    if (macVersion < 0) {
+                        macVersion = macDigits;
+                    }
+                    iosStart = -1;
+                    iosCpu = -1;
+                    iosDigits = -1;
+                    lastIosDigits = -1;
+                    macStart = -1;
+                    macDigits = -1;
+                    lastMacDigits = -1;
+                    safariVersion = -1;
+                    break;
+                case '(':
+                    if (iosStart < 0 && regionMatches(ua, i, IOS_START)) {
+                        iosStart = i;
+                    } else if (macStart < 0 && regionMatches(ua, i, MACOS_START)) {
+                        macStart = i;
+                    }
+                    break;
+                case ';':
+                    // "(iP.+; CPU " - at least one character between the two tokens
+                    if (iosCpu < 0 && iosStart >= 0 && i >= iosStart + IOS_START.length() + 1 &&
+                            regionMatches(ua, i, IOS_CPU)) {
+                        iosCpu = i;
+                    }
+                    break;
+                case 'O':
+                    if (regionMatches(ua, i, IOS_OS) && isDigit(ua, i + IOS_OS.length())) {
+                        lastIosDigits = i + IOS_OS.length();
+                    }
+                    break;
+                case 'M':
+                    if (macStart >= 0 && regionMatches(ua, i, MACOS_OS)) {
+                        int digits = matchMacosxVersion(ua, i);
+                        if (digits >= 0) {
+                            lastMacDigits = digits;
+                        }
+                    }
+                    break;
+                case ')':
+                    // Greedy ".*" before ") AppleWebKit/" selects the last OS version seen before it
+                    if (regionMatches(ua, i, APPLE_WEBKIT)) {
+                        iosDigits = lastIosDigits;
+                        macDigits = lastMacDigits;
+                    }
+                    break;
+                case 'V':
+                    if (safariVersion < 0 && regionMatches(ua, i, SAFARI_VERSION)) {
+                        safariVersion = i;
+                    }
+                    break;
+                case ' ':
+                    if (!safari && safariVersion >= 0 && regionMatches(ua, i, SAFARI)) {
+                        safari = true;
+                    }
+                    break;
+                case 'C':
+                    if (regionMatches(ua, i, CHROM)) {
+                        if (!chromium && isChromiumSuffix(ua, i + CHROM.length())) {
+                            chromium = true;
+                        }
+                        if (chromiumDigits < 0) {
+                            chromiumDigits = matchChromiumVersion(ua, i);
+                        }
+                    }
+                    break;
+                case 'U':
+                    if (regionMatches(ua, i, UC_BROWSER)) {
+                        uc = true;
+                        if (ucDigits < 0) {
+                            ucDigits = matchUcBrowserVersion(ua, i);
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        long key = 0;
+        if (iosVersion >= 0) {
+            key |= (long) exactVersion(ua, iosVersion) << IOS_MAJOR_SHIFT;
+        }
+        if (macVersion >= 0) {
+            int macMajor = exactVersion(ua, macVersion);
+            int macMinor = exactVersion(ua, digitsEnd(ua, macVersion) + 1);
+            key |= (long) macMajor << MACOS_MAJOR_SHIFT | (long) macMinor << MACOS_MINOR_SHIFT;
+            // Only needed, and only worth the extra look at the user-agent, for macOS 10.14
+            if (macMajor == 10 + 1 && macMinor == 14 + 1 && isMacEmbeddedBrowser(ua)) {
+                key |= MAC_EMBEDDED_FLAG;
+            }
+        }
+        if (chromiumDigits >= 0) {
+            key |= (long) parsedVersion(ua, chromiumDigits, CHROMIUM_FIELD) << CHROMIUM_MAJOR_SHIFT;
+        }
+        if (ucDigits >= 0) {
+            int minorDigits = digitsEnd(ua, ucDigits) + 1;
+            key |= (long) parsedVersion(ua, ucDigits, BYTE_FIELD) << UC_MAJOR_SHIFT |
+                    (long) parsedVersion(ua, minorDigits, BYTE_FIELD) << UC_MINOR_SHIFT |
+                    (long) parsedVersion(ua, digitsEnd(ua, minorDigits) + 1, BYTE_FIELD) << UC_BUILD_SHIFT;
+        }
+        if (safari) {
+            key |= SAFARI_FLAG;
+        }
+        if (chromium) {
+            key |= CHROMIUM_FLAG;
+        }
+        if (uc) {
+            key |= UC_FLAG;
+        }
+        return key;
+    }
+
+    static boolean isSameSiteNoneIncompatible(long key) {
+        // hasWebKitSameSiteBug
+        if (field(key, IOS_MAJOR_SHIFT, BYTE_FIELD) == 12 + 1) {
+            return true;
+        }
+        if (field(key, MACOS_MAJOR_SHIFT, BYTE_FIELD) == 10 + 1 && field(key, MACOS_MINOR_SHIFT, BYTE_FIELD) == 14 + 1 &&
+                ((key & SAFARI_FLAG) != 0 && (key & CHROMIUM_FLAG) == 0 || (key & MAC_EMBEDDED_FLAG) != 0)) {
+            return true;
+        }
+
+        // dropsUnrecognizedSameSiteCookies
+        if ((key & UC_FLAG) != 0) {
+            return !isUcBrowserVersionAtLeast(key, 12, 13, 2);
+        }
+        int chromiumMajor = field(key, CHROMIUM_MAJOR_SHIFT, CHROMIUM_FIELD);
+        return (key & CHROMIUM_FLAG) != 0 && chromiumMajor != 0 && chromiumMajor != overflow(CHROMIUM_FIELD) &&
+                chromiumMajor - 1 >= 51 && chromiumMajor - 1 < 67;
+    }
+
+    // "\(iP.+; CPU .*OS (\d+)[_\d]*.*\) AppleWebKit/"
+    static boolean isIosVersion(int major, CharSequence ua) {
+        int len = ua.length();
+        for (int from = 0; from <= len; ) {
+            int to = lineEnd(ua, from);
+            int digits = matchIosVersion(ua, from, to);
+            if (digits >= 0) {
+                return digitsEqual(ua, digits, major);
+            }
+            from = to + 1;
+        }
+        return false;
+    }
+
+    // "\(Macintosh;.*Mac OS X (\d+)_(\d+)[_\d]*.*\) AppleWebKit/"
+    static boolean isMacosxVersion(int major, int minor, CharSequence ua) {
+        int len = ua.length();
+        for (int from = 0; from <= len; ) {
+            int to = lineEnd(ua, from);
+            int digits = matchMacosxVersion(ua, from, to);
+            if (digits >= 0) {
+                return digitsEqual(ua, digits, major) && digitsEqual(ua, digitsEnd(ua, digits) + 1, minor);
+            }
+            from = to + 1;
+        }
+        return false;
+    }
+
+    // "Version/.* Safari/"
+    static boolean isSafari(CharSequence ua) {
+        int len = ua.length();
+        for (int from = 0; from <= len; ) {
+            int to = lineEnd(ua, from);
+            int version = indexOf(ua, SAFARI_VERSION, from, to);
+            if (version >= 0 && indexOf(ua, SAFARI, version + SAFARI_VERSION.length(), to) >= 0) {
+                return !isChromiumBased(ua);
+            }
+            from = to + 1;
+        }
+        return false;
+    }
+
+    // "^Mozilla/[.\d]+ \(Macintosh;.*Mac OS X [_\d]+\) AppleWebKit/[.\d]+ \(KHTML, like Gecko\)$"
+    static boolean isMacEmbeddedBrowser(CharSequence ua) {
+        int len = ua.length();
+        if (!regionMatches(ua, 0, MOZILLA)) {
+            return false;
+        }
+        int pos = MOZILLA.length();
+        int end = versionEnd(ua, pos);
+        if (end == pos || !regionMatches(ua, end, MACINTOSH)) {
+            return false;
+        }
+        int bodyStart = end + MACINTOSH.length();
+
+        int suffix = len - KHTML.length();
+        if (suffix < bodyStart || !regionMatches(ua, suffix, KHTML)) {
+            return false;
+        }
+        // Walk back over "[.\d]+" and ") AppleWebKit/"
+        pos = suffix;
+        while (pos > bodyStart && isVersionChar(ua.charAt(pos - 1))) {
+            pos--;
+        }
+        int webKit = pos - APPLE_WEBKIT.length();
+        if (pos == suffix || webKit < bodyStart || !regionMatches(ua, webKit, APPLE_WEBKIT)) {
+            return false;
+        }
+        // Walk back over "[_\d]+" and "Mac OS X "
+        pos = webKit;
+        while (pos > bodyStart && isOsVersionChar(ua.charAt(pos - 1))) {
+            pos--;
+        }
+        int os = pos - MACOS_OS.length();
+        return pos != webKit && os >= bodyStart && regionMatches(ua, os, MACOS_OS) && lineEnd(ua, bodyStart) >= os;
+    }
+
+    // "Chrom(e|ium)"
+    static boolean isChromiumBased(CharSequence ua) {
+        int pos = indexOf(ua, CHROM, 0);
+        while (pos >= 0) {
+            if (isChromiumSuffix(ua, pos + CHROM.length())) {
+                return true;
+            }
+            pos = indexOf(ua, CHROM, pos + 1);
+        }
+        return false;
+    }
+
+    // "Chrom[^ /]+/(\d+)[.\d]* "
+    static boolean isChromiumVersionAtLeast(int major, CharSequence ua) {
+        int digits = -1;
+        int pos = indexOf(ua, CHROM, 0);
+        while (pos >= 0 && (digits = matchChromiumVersion(ua, pos)) < 0) {
+            pos = indexOf(ua, CHROM, pos + 1);
+        }
+        return isChromiumVersionAtLeast(ua, digits, major);
+    }
+
+    // "UCBrowser/"
+    static boolean isUcBrowser(CharSequence ua) {
+        return indexOf(ua, UC_BROWSER, 0) >= 0;
+    }
+
+    // "UCBrowser/(\d+)\.(\d+)\.(\d+)[.\d]* "
+    static boolean isUcBrowserVersionAtLeast(int major, int minor, int build, CharSequence ua) {
+        int digits = -1;
+        int pos = indexOf(ua, UC_BROWSER, 0);
+        while (pos >= 0 && (digits = matchUcBrowserVersion(ua, pos)) < 0) {
+            pos = indexOf(ua, UC_BROWSER, pos + 1);
+        }
+        return isUcBrowserVersionAtLeast(ua, digits, major, minor, build);
+    }
+
+    /**
+     * @return position of the version digits if the iOS expression matches in the line from..to, -1 otherwise
+     */
+    private static int matchIosVersion(CharSequence ua, int from, int to) {
+        int start = indexOf(ua, IOS_START, from, to);
+        int webKit = lastIndexOf(ua, APPLE_WEBKIT, to - APPLE_WEBKIT.length(), from);
+        if (start < 0 || webKit < 0) {
+            return -1;
+        }
+        int os = lastIndexOf(ua, IOS_OS, webKit - IOS_OS.length() - 1, from);
+        while (os >= 0 && !isDigit(ua, os + IOS_OS.length())) {
+            os = lastIndexOf(ua, IOS_OS, os - 1, from);
+        }
+        if (os < 0) {
+            return -1;
+        }
+        int cpu = indexOf(ua, IOS_CPU, start + IOS_START.length() + 1, to);
+        return cpu >= 0 && cpu + IOS_CPU.length() <= os ? os + IOS_OS.length() : -1;
+    }
+
+    /**
+     * @return position of the major version digits if the macOS expression matches in the line from..to,
+     * -1 otherwise
+     */
+    private static int matchMacosxVersion(CharSequence ua, int from, int to) {
+        int start = indexOf(ua, MACOS_START, from, to);
+        int webKit = lastIndexOf(ua, APPLE_WEBKIT, to - APPLE_WEBKIT.length(), from);
+        if (start < 0 || webKit < 0) {
+            return -1;
+        }
+        int os = lastIndexOf(ua, MACOS_OS, webKit - 1, from);
+        int digits = -1;
+        while (os > start && (digits = matchMacosxVersion(ua, os)) < 0) {
+            os = lastIndexOf(ua, MACOS_OS, os - 1, from);
+        }
+        return os > start ? digits : -1;
+    }
+
+    /**
+     * @return position of the major version digits if "Mac OS X (\d+)_(\d+)" matches at pos, -1 otherwise
+     */
+    private static int matchMacosxVersion(CharSequence ua, int pos) {
+        int digits = pos + MACOS_OS.length();
+        int end = digitsEnd(ua, digits);
+        if (end == digits || end >= ua.length() || ua.charAt(end) != '_' || !isDigit(ua, end + 1)) {
+            return -1;
+        }
+        return digits;
+    }
+
+    /**
+     * @return position of the version digits if "Chrom[^ /]+/(\d+)[.\d]* " matches at pos, -1 otherwise
+     */
+    private static int matchChromiumVersion(CharSequence ua, int pos) {
+        int len = ua.length();
+        int start = pos + CHROM.length();
+        int end = start;
+        while (end < len && ua.charAt(end) != ' ' && ua.charAt(end) != '/') {
+            end++;
+        }
+        if (end == start || end >= len || ua.charAt(end) != '/') {
+            return -1;
+        }
+        int digits = end + 1;
+        end = digitsEnd(ua, digits);
+        if (end == digits) {
+            return -1;
+        }
+        end = versionEnd(ua, end);
+        return end < len && ua.charAt(end) == ' ' ? digits : -1;
+    }
+
+    /**
+     * @return position of the major version digits if "UCBrowser/(\d+)\.(\d+)\.(\d+)[.\d]* " matches at pos,
+     * -1 otherwise
+     */
+    private static int matchUcBrowserVersion(CharSequence ua, int pos) {
+        int len = ua.length();
+        int digits = pos + UC_BROWSER.length();
+        int start = digits;
+        for (int group = 0; group < 3; group++) {
+            int end = digitsEnd(ua, start);
+            if (end == start) {
+                return -1;
+            }
+            if (group < 2) {
+                if (end >= len || ua.charAt(end) != '.') {
+                    return -1;
+                }
+                start = end + 1;
+            } else {
+                end = versionEnd(ua, end);
+                if (end >= len || ua.charAt(end) != ' ') {
+                    return -1;
+                }
+            }
+        }
+        return digits;
+    }
+
+    private static boolean isChromiumVersionAtLeast(CharSequence ua, int digits, int major) {
+        if (digits < 0) {
+            return false;
+        }
+        int version = parseDigits(ua, digits);
+        // -1 is an overflow, the regex based version failed on Integer.parseInt
+        return version >= 0 && version >= major;
+    }
+
+    private static boolean isUcBrowserVersionAtLeast(CharSequence ua, int digits, int major, int minor,
+                                                     int build) {
+        if (digits < 0) {
+            return false;
+        }
+        int majorVersion = parseDigits(ua, digits);
+        if (majorVersion < 0) {
+            return false;
+        }
+        if (majorVersion != major) {
+            return majorVersion > major;
+        }
+        digits = digitsEnd(ua, digits) + 1;
+        int minorVersion = parseDigits(ua, digits);
+        if (minorVersion < 0) {
+            return false;
+        }
+        if (minorVersion != minor) {
+            return minorVersion > minor;
+        }
+        int buildVersion = parseDigits(ua, digitsEnd(ua, digits) + 1);
+        return buildVersion >= 0 && buildVersion >= build;
+    }
+
+    private static boolean isUcBrowserVersionAtLeast(long key, int major, int minor, int build) {
+        // 0 is no version, overflow is a component Integer.parseInt failed on
+        int majorVersion = field(key, UC_MAJOR_SHIFT, BYTE_FIELD);
+        if (majorVersion == 0 || majorVersion == overflow(BYTE_FIELD)) {
+            return false;
+        }
+        if (majorVersion - 1 != major) {
+            return majorVersion - 1 > major;
+        }
+        int minorVersion = field(key, UC_MINOR_SHIFT, BYTE_FIELD);
+        if (minorVersion == overflow(BYTE_FIELD)) {
+            return false;
+        }
+        if (minorVersion - 1 != minor) {
+            return minorVersion - 1 > minor;
+        }
+        int buildVersion = field(key, UC_BUILD_SHIFT, BYTE_FIELD);
+        return buildVersion != overflow(BYTE_FIELD) && buildVersion - 1 >= build;
+    }
+
+    private static int field(long key, int shift, int bits) {
+        return (int) (key >>> shift) & ((1 << bits) - 1);
+    }
+
+    private static int overflow(int bits) {
+        return (1 << bits) - 1;
+    }
+
+    /**
+     * Encodes digits compared as strings: value + 1 for 0..253 without leading zeros, 255 for any other.
+     */
+    private static int exactVersion(CharSequence ua, int pos) {
+        int end = digitsEnd(ua, pos);
+        if (end == pos || end - pos > 3 || end - pos > 1 && ua.charAt(pos) == '0') {
+            return overflow(BYTE_FIELD);
+        }
+        int value = parseDigits(ua, pos);
+        return value > 253 ? overflow(BYTE_FIELD) : value + 1;
+    }
+
+    /**
+     * Encodes digits compared as numbers: value + 1 folded to the largest value below the overflow marker,
+     * overflow marker if Integer.parseInt would fail.
+     */
+    private static int parsedVersion(CharSequence ua, int pos, int bits) {
+        int value = parseDigits(ua, pos);
+        if (value < 0) {
+            return overflow(bits);
+        }
+        return Math.min(value, overflow(bits) - 2) + 1;
+    }
+
+    private static boolean isChromiumSuffix(CharSequence ua, int pos) {
+        return pos < ua.length() && ua.charAt(pos) == 'e' || regionMatches(ua, pos, "ium");
+    }
+
+    /**
+     * Same as {@code String.valueOf(value).equals(digitGroup)} for the digits starting at pos.
+     */
+    private static boolean digitsEqual(CharSequence ua, int pos, int value) {
+        if (value < 0) {
+            return false;
+        }
+        int i = digitsEnd(ua, pos) - 1;
+        do {
+            if (i < pos || ua.charAt(i) != (char) ('0' + value % 10)) {
+                return false;
+            }
+            value /= 10;
+            i--;
+        } while (value > 0);
+        return i == pos - 1;
+    }
+
+    /**
+     * Same as {@code Integer.parseInt(digitGroup)} for the digits starting at pos.
+     *
+     * @return parsed value or -1 if it does not fit into int
+     */
+    private static int parseDigits(CharSequence ua, int pos) {
+        int len = ua.length();
+        int value = 0;
+        for (int i = pos; i < len && isDigit(ua.charAt(i)); i++) {
+            int digit = ua.charAt(i) - '0';
+            if (value > (Integer.MAX_VALUE - digit) / 10) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int digitsEnd(CharSequence ua, int pos) {
+        int len = ua.length();
+        while (pos < len && isDigit(ua.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int versionEnd(CharSequence ua, int pos) {
+        int len = ua.length();
+        while (pos < len && isVersionChar(ua.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isDigit(CharSequence ua, int pos) {
+        return pos < ua.length() && isDigit(ua.charAt(pos));
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isVersionChar(char c) {
+        return c == '.' || isDigit(c);
+    }
+
+    private static boolean isOsVersionChar(char c) {
+        return c == '_' || isDigit(c);
+    }
+
+    static boolean regionMatches(CharSequence s, int pos, String token) {
+        int len = token.length();
+        if (pos < 0 || pos + len > s.length()) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (s.charAt(pos + i) != token.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return position of the first line terminator from pos, the length if there is none
+     */
+    private static int lineEnd(CharSequence ua, int pos) {
+        int len = ua.length();
+        while (pos < len && !isLineTerminator(ua.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Same as the characters {@code .} does not match without DOTALL
+     */
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    static int indexOf(CharSequence s, String token, int from) {
+        return indexOf(s, token, from, s.length());
+    }
+
+    /**
+     * @return first position of the token within from..to, -1 if there is none
+     */
+    private static int indexOf(CharSequence s, String token, int from, int to) {
+        int last = to - token.length();
+        char first = token.charAt(0);
+        for (int i = Math.max(from, 0); i <= last; i++) {
+            if (s.charAt(i) == first && regionMatches(s, i, token)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return last position of the token from from backwards, not before min, -1 if there is none
+     */
+    private static int lastIndexOf(CharSequence s, String token, int from, int min) {
+        char first = token.charAt(0);
+        for (int i = Math.min(from, s.length() - token.length()); i >= min; i--) {
+            if (s.charAt(i) == first && regionMatches(s, i, token)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
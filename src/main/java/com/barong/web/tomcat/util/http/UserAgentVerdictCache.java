@@ -0,0 +1,129 @@
+package com.barong.web.tomcat.util.http;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, thread-safe cache of SameSite=None incompatibility verdicts keyed by a 64-bit
+ * user-agent hash ({@link UserAgentHash}).
+ * <br>
+ * <br>Entries live in 4-way buckets of a fixed table. When a bucket is full the least frequently
+ * used entry is replaced, but only if the new user-agent was seen more often than that entry
+ * ({@link FrequencySketch}). A flood of user-agents seen once therefore can not evict the hot ones.
+ * <br>Each entry is a single long: the key with the verdict in its lowest bit. Lookups and updates
+ * never lock and never allocate.
+ */
+final class UserAgentVerdictCache {
+
+    private static final int WAYS = 4;
+
+    private static final long EMPTY = 0L;
+
+    private final int maximumSize;
+
+    private final LongSlots table;
+
+    private final int bucketMask;
+
+    private final FrequencySketch sketch;
+
+    private final LongAdder hitCount = new LongAdder();
+
+    private final LongAdder missCount = new LongAdder();
+
+    private final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * @param maximumSize number of cached user-agents, rounded up to a power of two
+     */
+    UserAgentVerdictCache(int maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+        }
+        int length = FrequencySketch.tableSizeFor(Math.max(maximumSize, WAYS));
+        this.maximumSize = length;
+        this.table = new LongSlots(length);
+        this.bucketMask = length / WAYS - 1;
+        this.sketch = new FrequencySketch(length);
+    }
+
+    /**
+     * @return cached verdict or null if user-agent is not cached
+     */
+    Boolean get(long hash) {
+        long key = keyOf(hash);
+        sketch.increment(sketchHashOf(key));
+        int base = bucketOf(key);
+        for (int i = 0; i < WAYS; i++) {
+            long entry = table.get(base + i);
+            if ((entry & ~1L) == key) {
+                hitCount.increment();
+                return (entry & 1L) != 0 ? Boolean.TRUE : Boolean.FALSE;
+            }
+        }
+        missCount.increment();
+        return null;
+    }
+
+    void put(long hash, boolean incompatible) {
+        long key = keyOf(hash);
+        long entry = key | (incompatible ? 1L : 0L);
+        int base = bucketOf(key);
+        long victim = EMPTY;
+        int victimIndex = -1;
+        int victimFrequency = Integer.MAX_VALUE;
+        for (int i = 0; i < WAYS; i++) {
+            long current = table.get(base + i);
+            if (current == EMPTY) {
+                if (table.compareAndSet(base + i, EMPTY, entry)) {
+                    return;
+                }
+                current = table.get(base + i);
+            }
+            if ((current & ~1L) == key) {
+                return;
+            }
+            int frequency = sketch.frequency(sketchHashOf(current & ~1L));
+            if (frequency < victimFrequency) {
+                victim = current;
+                victimIndex = base + i;
+                victimFrequency = frequency;
+            }
+        }
+        // TinyLFU admission: only a more popular user-agent may take the place of the victim
+        if (victimIndex >= 0 && sketch.frequency(sketchHashOf(key)) > victimFrequency &&
+                table.compareAndSet(victimIndex, victim, entry)) {
+            evictionCount.increment();
+        }
+    }
+
+    int getMaximumSize() {
+        return maximumSize;
+    }
+
+    long getHitCount() {
+        return hitCount.sum();
+    }
+
+    long getMissCount() {
+        return missCount.sum();
+    }
+
+    long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    private static long keyOf(long hash) {
+        long key = hash & ~1L;
+        // 0 marks an empty slot
+        return key == EMPTY ? 2L : key;
+    }
+
+    private static int sketchHashOf(long key) {
+        return (int) (key ^ (key >>> 32));
+    }
+
+    private int bucketOf(long key) {
+        // Low bits select the sketch counters, use the high ones for the bucket
+        return ((int) (key >>> 40) & bucketMask) * WAYS;
+    }
+}
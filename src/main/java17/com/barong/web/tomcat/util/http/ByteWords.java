@@ -0,0 +1,44 @@
+package com.barong.web.tomcat.util.http;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.codehaus.mojo.animal_sniffer.IgnoreJRERequirement;
+
+/**
+ * Reads 8 bytes of a byte array as one long, for word-at-a-time (SWAR) scanning and comparison of headers.
+ * <br>
+ * <br>Java 17 version: a single, possibly unaligned, load through a byte array view VarHandle, and
+ * the vectorized range comparison of Arrays.
+ */
+@IgnoreJRERequirement
+final class ByteWords {
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private ByteWords() {
+    }
+
+    /**
+     * @return true if {@link #get(byte[], int)} is a single load
+     */
+    static boolean isSingleLoad() {
+        return true;
+    }
+
+    /**
+     * @return bytes[i] to bytes[i + 7] as a little-endian long
+     */
+    static long get(byte[] bytes, int i) {
+        return (long) LONGS.get(bytes, i);
+    }
+
+    /**
+     * @return true if bytes[off] to bytes[off + len - 1] equal the whole expected array
+     */
+    static boolean equals(byte[] expected, byte[] bytes, int off, int len) {
+        return expected.length == len && Arrays.equals(expected, 0, len, bytes, off, off + len);
+    }
+}
@@ -0,0 +1,45 @@
+package com.barong.web.tomcat.util.http;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import org.codehaus.mojo.animal_sniffer.IgnoreJRERequirement;
+
+/**
+ * Fixed size array of longs updated lock-free, used by the user-agent verdict cache and its
+ * frequency sketch.
+ * <br>
+ * <br>Java 17 version: a plain array accessed through a VarHandle, reads have acquire semantics
+ * and retry loops use weak compare-and-set, which avoids a loop around a strong one on LL/SC
+ * processors.
+ */
+@IgnoreJRERequirement
+final class LongSlots {
+
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long[] slots;
+
+    LongSlots(int length) {
+        slots = new long[length];
+    }
+
+    int length() {
+        return slots.length;
+    }
+
+    long get(int i) {
+        return (long) SLOTS.getAcquire(slots, i);
+    }
+
+    boolean compareAndSet(int i, long expect, long update) {
+        return SLOTS.compareAndSet(slots, i, expect, update);
+    }
+
+    /**
+     * May fail spuriously, only for retry loops
+     */
+    boolean weakCompareAndSet(int i, long expect, long update) {
+        return SLOTS.weakCompareAndSet(slots, i, expect, update);
+    }
+}
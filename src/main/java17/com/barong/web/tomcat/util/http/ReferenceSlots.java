@@ -0,0 +1,45 @@
+package com.barong.web.tomcat.util.http;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+import org.codehaus.mojo.animal_sniffer.IgnoreJRERequirement;
+
+/**
+ * Fixed size array of references shared between threads, used by the direct-mapped caches.
+ * <br>
+ * <br>Java 17 version: a plain array accessed through a VarHandle with acquire reads and release
+ * writes, rather than the volatile accesses of AtomicReferenceArray. Readers only need to see fully
+ * built, immutable entries.
+ */
+@IgnoreJRERequirement
+final class ReferenceSlots<E> {
+
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    private final Object[] slots;
+
+    ReferenceSlots(int length) {
+        slots = new Object[length];
+    }
+
+    int length() {
+        return slots.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    E get(int i) {
+        return (E) SLOTS.getAcquire(slots, i);
+    }
+
+    /**
+     * Publishes an entry, other threads may see it later
+     */
+    void lazySet(int i, E value) {
+        SLOTS.setRelease(slots, i, value);
+    }
+
+    void set(int i, E value) {
+        SLOTS.setVolatile(slots, i, value);
+    }
+}
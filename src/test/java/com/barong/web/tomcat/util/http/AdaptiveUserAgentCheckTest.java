@@ -0,0 +1,164 @@
+package com.barong.web.tomcat.util.http;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveUserAgentCheckTest {
+
+    @Test
+    public void testBypassAndRestore() {
+        AtomicLong now = new AtomicLong(1_000_000);
+        AdaptiveUserAgentCheck check = new AdaptiveUserAgentCheck(1, 0.01, 10, now::get);
+        assertFalse(check.bypass());
+
+        // One second per bucket: the window is evaluated when a bucket is rolled over
+        for (int second = 0; second < 3; second++) {
+            for (int i = 0; i < AdaptiveUserAgentCheck.MIN_SAMPLES; i++) {
+                check.record(false);
+            }
+            now.addAndGet(1000);
+        }
+        check.record(false);
+        assertTrue(check.isBypassing());
+        assertEquals(0, check.getIncompatibleRate(), 0);
+        assertEquals(1, check.getModeSwitchCount());
+
+        // Every request is sampled, so requests are still classified
+        assertFalse(check.bypass());
+
+        for (int second = 0; second < 10; second++) {
+            for (int i = 0; i < AdaptiveUserAgentCheck.MIN_SAMPLES; i++) {
+                check.record(i % 10 == 0);
+            }
+            now.addAndGet(1000);
+        }
+        check.record(false);
+        assertFalse(check.isBypassing());
+        assertEquals(2, check.getModeSwitchCount());
+    }
+
+    @Test
+    public void testConcurrentRollOver() throws Exception {
+        AtomicLong now = new AtomicLong(1_000_000);
+        AdaptiveUserAgentCheck check = new AdaptiveUserAgentCheck(1, 0.01, 10, now::get);
+        int threads = 4;
+        int samples = 10_000;
+        // Every bucket is rolled over while other threads record in it
+        for (int second = 0; second < 9; second++) {
+            CountDownLatch start = new CountDownLatch(1);
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                workers[t] = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < samples; i++) {
+                        check.record(false);
+                    }
+                });
+                workers[t].start();
+            }
+            start.countDown();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            now.addAndGet(1000);
+        }
+        check.record(false);
+        assertEquals(9L * threads * samples, check.getWindowSampleCount());
+    }
+
+    @Test
+    public void testNotEnoughSamples() {
+        AtomicLong now = new AtomicLong(1_000_000);
+        AdaptiveUserAgentCheck check = new AdaptiveUserAgentCheck(1, 0.01, 10, now::get);
+        for (int second = 0; second < 20; second++) {
+            for (int i = 0; i < 10; i++) {
+                check.record(false);
+            }
+            now.addAndGet(1000);
+        }
+        assertFalse(check.isBypassing());
+    }
+
+    @Test
+    public void testProcessorAttributes() {
+        SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+        assertEquals(0, processor.getUserAgentBypassThreshold(), 0);
+        assertFalse(processor.isUserAgentCheckBypassed());
+        processor.setUserAgentSampleRate(0.05);
+        processor.setUserAgentBypassWindow(60);
+        processor.setUserAgentBypassThreshold(0.001);
+        assertEquals(0.05, processor.getUserAgentSampleRate(), 0);
+        assertEquals(60, processor.getUserAgentBypassWindow());
+        assertFalse(processor.isUserAgentCheckBypassed());
+        processor.setUserAgentBypassThreshold(0);
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName pattern = new ObjectName("com.barong.web.tomcat:type=AdaptiveUserAgentCheck,*");
+        int registered = server.queryNames(pattern, null).size();
+
+        SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+        processor.setUserAgentBypassThreshold(0.01);
+        assertFalse(processor.getUserAgentBypassMBean());
+        assertEquals(registered, server.queryNames(pattern, null).size());
+
+        processor.setUserAgentBypassMBean(true);
+        assertEquals(registered + 1, server.queryNames(pattern, null).size());
+        ObjectName name = processor.getUserAgentClassifier().getAdaptiveCheckName();
+        assertEquals(false, server.getAttribute(name, "Bypassing"));
+        assertEquals(0.01, (Double) server.getAttribute(name, "Threshold"), 0);
+
+        processor.setUserAgentBypassThreshold(0);
+        assertEquals(registered, server.queryNames(pattern, null).size());
+        processor.setUserAgentBypassThreshold(0.01);
+        assertEquals(registered + 1, server.queryNames(pattern, null).size());
+        processor.setUserAgentBypassMBean(false);
+        assertEquals(registered, server.queryNames(pattern, null).size());
+    }
+
+    @Test
+    public void testMBeanReleased() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName pattern = new ObjectName("com.barong.web.tomcat:type=AdaptiveUserAgentCheck,*");
+        int registered = server.queryNames(pattern, null).size();
+
+        WeakReference<SameSiteLegacyCookieProcessor> processor = new WeakReference<>(registeredProcessor());
+        assertEquals(registered + 1, server.queryNames(pattern, null).size());
+        for (int i = 0; i < 100 && processor.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(processor.get());
+
+        // The bean of the collected processor goes away when the next one is registered
+        SameSiteLegacyCookieProcessor next = registeredProcessor();
+        assertEquals(registered + 1, server.queryNames(pattern, null).size());
+        next.setUserAgentBypassMBean(false);
+        assertEquals(registered, server.queryNames(pattern, null).size());
+    }
+
+    private static SameSiteLegacyCookieProcessor registeredProcessor() {
+        SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+        processor.setUserAgentBypassThreshold(0.01);
+        processor.setUserAgentBypassMBean(true);
+        return processor;
+    }
+}
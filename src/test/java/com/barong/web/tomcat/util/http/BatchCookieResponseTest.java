@@ -0,0 +1,69 @@
+package com.barong.web.tomcat.util.http;
+
+import java.util.Arrays;
+import java.util.List;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.tomcat.util.http.SameSiteCookies;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.StrictStubs.class)
+public class BatchCookieResponseTest {
+
+    @Mock
+    HttpServletRequest request;
+
+    @Mock
+    HttpServletResponse response;
+
+    @Test
+    public void testGenerateHeaders() {
+        when(request.isSecure()).thenReturn(true);
+        when(request.getHeader("sec-ch-ua")).thenReturn(null);
+        when(request.getHeader("user-agent")).thenReturn(
+                "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/84.0.4147.105 Safari/537.36");
+        SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+        processor.setSameSiteCookies(SameSiteCookies.NONE.getValue());
+        Cookie session = new Cookie("session", "abc");
+        session.setPath("/");
+        session.setHttpOnly(true);
+        Cookie tracking = new Cookie("tracking", "with space");
+        tracking.setMaxAge(0);
+        List<String> headers = processor.generateHeaders(Arrays.asList(session, tracking), request);
+        assertEquals(Arrays.asList(
+                "session=abc; Path=/; HttpOnly; SameSite=None; Secure",
+                "tracking=\"with space\"; Version=1; Max-Age=0; Expires=Thu, 01-Jan-1970 00:00:10 GMT; SameSite=None; Secure"),
+                headers);
+        verify(request, times(1)).getHeader("user-agent");
+    }
+
+    @Test
+    public void testFlushCookies() throws Exception {
+        SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+        BatchCookieResponse batch = new BatchCookieResponse(response, processor, null);
+        batch.addCookie(new Cookie("first", "1"));
+        batch.addCookie(new Cookie("second", "2"));
+        verify(response, never()).addHeader(anyString(), anyString());
+        batch.getWriter();
+        InOrder inOrder = inOrder(response);
+        inOrder.verify(response).addHeader("Set-Cookie", "first=1");
+        inOrder.verify(response).addHeader("Set-Cookie", "second=2");
+        inOrder.verify(response).getWriter();
+        batch.flushCookies();
+        verify(response, times(2)).addHeader(anyString(), anyString());
+    }
+}
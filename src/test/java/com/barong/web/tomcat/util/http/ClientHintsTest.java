@@ -0,0 +1,34 @@
+package com.barong.web.tomcat.util.http;
+
+import org.junit.Test;
+
+import static com.barong.web.tomcat.util.http.ClientHints.chromiumMajorVersion;
+import static com.barong.web.tomcat.util.http.ClientHints.isSameSiteNoneIncompatible;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ClientHintsTest {
+
+    @Test
+    public void testChromiumMajorVersion() {
+        assertEquals(92, chromiumMajorVersion("\" Not A;Brand\";v=\"99\", \"Chromium\";v=\"92\", \"Google Chrome\";v=\"92\""));
+        assertEquals(89, chromiumMajorVersion("\"Chromium\";v=\"89.0.4389.90\""));
+        assertEquals(90, chromiumMajorVersion("\"Chro\\\"mium\";v=\"1\",\"Chromium\";x;v=90"));
+        assertEquals(-1, chromiumMajorVersion("\"Google Chrome\";v=\"92\""));
+        assertEquals(-1, chromiumMajorVersion("\"Chromium2\";v=\"92\""));
+        assertEquals(-1, chromiumMajorVersion("\"Chromium\";v=\"\""));
+        assertEquals(-1, chromiumMajorVersion("Chromium;v=92"));
+        assertEquals(-1, chromiumMajorVersion("\"Brand\";v=\"1\" \"Chromium\";v=\"92\""));
+        assertEquals(-1, chromiumMajorVersion(""));
+    }
+
+    @Test
+    public void testIsSameSiteNoneIncompatible() {
+        assertNull(isSameSiteNoneIncompatible(null));
+        assertNull(isSameSiteNoneIncompatible("\"Brand\";v=\"1\""));
+        assertEquals(Boolean.TRUE, isSameSiteNoneIncompatible("\"Chromium\";v=\"51\""));
+        assertEquals(Boolean.TRUE, isSameSiteNoneIncompatible("\"Chromium\";v=\"66\""));
+        assertEquals(Boolean.FALSE, isSameSiteNoneIncompatible("\"Chromium\";v=\"67\""));
+        assertEquals(Boolean.FALSE, isSameSiteNoneIncompatible("\"Chromium\";v=\"50\""));
+    }
+}
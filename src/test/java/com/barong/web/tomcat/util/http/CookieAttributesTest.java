@@ -0,0 +1,47 @@
+package com.barong.web.tomcat.util.http;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CookieAttributesTest {
+
+    @Test
+    public void testValidatedOnce() {
+        AtomicInteger validations = new AtomicInteger();
+        CookieAttributes paths = new CookieAttributes("; Path=", path -> {
+            validations.incrementAndGet();
+            if (path.indexOf(';') >= 0) {
+                throw new IllegalArgumentException("invalid path " + path);
+            }
+        }, 16);
+        for (int i = 0; i < 3; i++) {
+            StringBuilder sb = new StringBuilder();
+            paths.append(sb, "/app");
+            paths.append(sb, new String("/other"));
+            assertEquals("; Path=/app; Path=/other", sb.toString());
+            try {
+                paths.append(sb, "/a;b");
+                fail();
+            } catch (IllegalArgumentException e) {
+                assertEquals("invalid path /a;b", e.getMessage());
+            }
+        }
+        assertEquals(3, validations.get());
+    }
+
+    @Test
+    public void testSlotCollision() {
+        AtomicInteger validations = new AtomicInteger();
+        CookieAttributes domains = new CookieAttributes("; Domain=", domain -> validations.incrementAndGet(), 1);
+        StringBuilder sb = new StringBuilder();
+        domains.append(sb, "a.example.com");
+        domains.append(sb, "b.example.com");
+        domains.append(sb, "a.example.com");
+        assertEquals("; Domain=a.example.com; Domain=b.example.com; Domain=a.example.com", sb.toString());
+        assertEquals(3, validations.get());
+    }
+}
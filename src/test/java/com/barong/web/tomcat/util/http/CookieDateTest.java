@@ -0,0 +1,54 @@
+package com.barong.web.tomcat.util.http;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CookieDateTest {
+
+    @Test
+    public void testSameAsCookieDateFormat() {
+        // Same pattern as CookieProcessorBase.COOKIE_DATE_FORMAT
+        DateFormat format = new SimpleDateFormat("EEE, dd-MMM-yyyy HH:mm:ss z", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        Random random = new Random(20201117);
+        long[] fixed = {0, 10_000, 951_782_400_000L, 4_107_542_399_999L, System.currentTimeMillis()};
+        for (long millis : fixed) {
+            assertExpires(format, millis);
+        }
+        for (int i = 0; i < 100_000; i++) {
+            assertExpires(format, (long) (random.nextDouble() * 8_000_000_000_000L));
+        }
+    }
+
+    private static void assertExpires(DateFormat format, long millis) {
+        StringBuilder sb = new StringBuilder();
+        CookieDate.appendExpires(sb, millis);
+        assertEquals(format.format(new Date(millis)), sb.toString());
+    }
+
+    @Test
+    public void testCachedExpires() {
+        DateFormat format = new SimpleDateFormat("EEE, dd-MMM-yyyy HH:mm:ss z", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        long now = 1_605_571_200_000L;
+        int[] maxAges = {1, 60, 1800, 3600, 86_400, 31_536_000, 60 + 32};
+        for (int tick = 0; tick < 3; tick++) {
+            for (long millis = now; millis < now + 2000; millis += 250) {
+                for (int maxAge : maxAges) {
+                    StringBuilder sb = new StringBuilder("; Expires=");
+                    CookieDate.appendExpires(sb, millis, maxAge);
+                    assertEquals("; Expires=" + format.format(new Date(millis + maxAge * 1000L)), sb.toString());
+                }
+            }
+            now += 1000;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.barong.web.tomcat.util.http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.apache.tomcat.util.http.CookieProcessor;
+import org.apache.tomcat.util.http.LegacyCookieProcessor;
+import org.apache.tomcat.util.http.MimeHeaders;
+import org.apache.tomcat.util.http.ServerCookie;
+import org.apache.tomcat.util.http.ServerCookies;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the Cookie header parser of {@link SameSiteLegacyCookieProcessor} with Tomcat's one.
+ */
+public class CookieHeaderParserTest {
+
+    private static final String[] FRAGMENTS = {
+            "name", "JSESSIONID", "=", "==", "value", "0123456789abcdefABCDEF", "a+b/c==", "-._", "; ", ";", ",", " ",
+            "\t", "\"", "\"quoted\"", "\"a\\\"b\"", "\\", "$Version=1; ", "$Version=\"1\"", "$Path=/app", "$Domain=x.com",
+            "$Port=80", "$Other=1", "()<>@:[]?{}", "/", "eyJhbGciOiJIUzI1NiIsInR5cCI6IkpXVCJ9.eyJzdWIiOiIxMjM0NTY3ODkwIn0",
+            "\r\n", "\u0001", "\u007f", "é", "=\"",
+    };
+
+    @Test
+    public void testSameAsTomcat() {
+        Random random = new Random(20201119);
+        for (int settings = 0; settings < 16; settings++) {
+            SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+            LegacyCookieProcessor tomcat = new LegacyCookieProcessor();
+            processor.setAllowHttpSepsInV0((settings & 1) != 0);
+            tomcat.setAllowHttpSepsInV0((settings & 1) != 0);
+            processor.setForwardSlashIsSeparator((settings & 2) != 0);
+            tomcat.setForwardSlashIsSeparator((settings & 2) != 0);
+            processor.setAllowEqualsInValue((settings & 4) != 0);
+            tomcat.setAllowEqualsInValue((settings & 4) != 0);
+            processor.setAllowNameOnly((settings & 8) != 0);
+            tomcat.setAllowNameOnly((settings & 8) != 0);
+            for (int i = 0; i < 3000; i++) {
+                StringBuilder header = new StringBuilder();
+                int parts = 1 + random.nextInt(40);
+                for (int j = 0; j < parts; j++) {
+                    String fragment = FRAGMENTS[random.nextInt(FRAGMENTS.length)];
+                    // Controls and non ASCII bytes are rare in real headers
+                    if (fragment.charAt(0) < 0x20 && fragment.charAt(0) != '\t' || fragment.charAt(0) > 0x7e) {
+                        fragment = FRAGMENTS[random.nextInt(FRAGMENTS.length)];
+                    }
+                    header.append(fragment);
+                }
+                String cookieHeader = header.toString();
+                assertEquals(cookieHeader, parse(tomcat, cookieHeader), parseAll(processor, cookieHeader));
+            }
+        }
+    }
+
+    @Test
+    public void testCachedSameAsTomcat() {
+        SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+        processor.setCookieHeaderCacheSize(64);
+        LegacyCookieProcessor tomcat = new LegacyCookieProcessor();
+        Random random = new Random(20201121);
+        for (int i = 0; i < 5000; i++) {
+            if (i == 2500) {
+                processor.setAllowNameOnly(true);
+                tomcat.setAllowNameOnly(true);
+                processor.setAllowEqualsInValue(true);
+                tomcat.setAllowEqualsInValue(true);
+            }
+            StringBuilder header = new StringBuilder();
+            int parts = 1 + random.nextInt(20);
+            for (int j = 0; j < parts; j++) {
+                header.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            }
+            String cookieHeader = header.toString();
+            String expected = parse(tomcat, cookieHeader);
+            assertEquals(cookieHeader, expected, parse(processor, cookieHeader));
+            assertEquals(cookieHeader, expected, parseAll(processor, cookieHeader));
+        }
+        assertTrue(processor.getCookieHeaderCacheHitCount() > 1000);
+    }
+
+    @Test
+    public void testCharsSameAsTomcat() {
+        Random random = new Random(20201122);
+        String[] unencodable = {"\u0100", "\u20ac", "\ud83d\ude00"};
+        String[] names = {"name", "JSESSIONID", "value"};
+        for (int settings = 0; settings < 16; settings++) {
+            SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+            LegacyCookieProcessor tomcat = new LegacyCookieProcessor();
+            processor.setAllowHttpSepsInV0((settings & 1) != 0);
+            tomcat.setAllowHttpSepsInV0((settings & 1) != 0);
+            processor.setForwardSlashIsSeparator((settings & 2) != 0);
+            tomcat.setForwardSlashIsSeparator((settings & 2) != 0);
+            processor.setAllowEqualsInValue((settings & 4) != 0);
+            tomcat.setAllowEqualsInValue((settings & 4) != 0);
+            processor.setAllowNameOnly((settings & 8) != 0);
+            tomcat.setAllowNameOnly((settings & 8) != 0);
+            for (int i = 0; i < 1000; i++) {
+                StringBuilder header = new StringBuilder();
+                int parts = 1 + random.nextInt(30);
+                for (int j = 0; j < parts; j++) {
+                    if (random.nextInt(20) == 0) {
+                        header.append(unencodable[random.nextInt(unencodable.length)]);
+                    } else {
+                        header.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+                    }
+                }
+                String cookieHeader = header.toString();
+                // Tomcat converts chars to bytes first
+                String expected = parse(tomcat, cookieHeader);
+                assertEquals(cookieHeader, expected, parse(processor, stringHeaders(cookieHeader)));
+                assertEquals(cookieHeader, expected, parse(processor, charHeaders(cookieHeader)));
+                if (expected.startsWith("Control")) {
+                    continue;
+                }
+                for (String name : names) {
+                    assertEquals(cookieHeader + " " + name, processor.findCookieValue(headers(cookieHeader), name),
+                            processor.findCookieValue(charHeaders(cookieHeader), name));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBudget() {
+        SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+        processor.setCookieHeaderCacheSize(16);
+        assertEquals("a=1 version=0 path=null domain=null\nb=2 version=0 path=null domain=null\n" +
+                "c=3 version=0 path=null domain=null\n", parse(processor, "a=1; b=2; c=3"));
+        assertEquals(0, processor.getCookieBudgetExceededCount());
+
+        processor.setMaxParsedCookies(2);
+        assertEquals("a=1 version=0 path=null domain=null\nb=2 version=0 path=null domain=null\n",
+                parse(processor, "a=1; b=2; c=3"));
+        assertEquals(1, processor.getCookieBudgetExceededCount());
+        processor.setMaxParsedCookies(-1);
+
+        processor.setMaxCookieLength(3);
+        String skipped = "a=1 version=0 path=null domain=null\nb=2 version=0 path=null domain=null\n";
+        assertEquals(skipped, parse(processor, "a=1; long=value; $Path=/; b=2"));
+        // Not cached, counted again
+        assertEquals(skipped, parse(processor, "a=1; long=value; $Path=/; b=2"));
+        assertEquals(3, processor.getCookieBudgetExceededCount());
+        processor.setMaxCookieLength(-1);
+
+        processor.setMaxCookieHeaderBytes(11);
+        assertEquals(skipped, parse(processor, "a=1; b=2; c=3"));
+        assertEquals(skipped, parse(processor, "a=1; b=2; c=3"));
+        assertEquals(5, processor.getCookieBudgetExceededCount());
+        assertEquals(null, processor.findCookieValue(headers("a=1; b=2; c=3"), "c"));
+        assertEquals(6, processor.getCookieBudgetExceededCount());
+        processor.setMaxCookieHeaderBytes(-1);
+
+        // One count per lookup, whether the cookie is found or not
+        processor.setMaxCookieLength(3);
+        assertEquals("1", processor.findCookieValue(headers("long=value; a=1"), "a"));
+        assertEquals(7, processor.getCookieBudgetExceededCount());
+        assertEquals(null, processor.findCookieValue(headers("long=value; a=1"), "b"));
+        assertEquals(8, processor.getCookieBudgetExceededCount());
+    }
+
+    @Test
+    public void testCacheCounts() {
+        SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+        processor.setCookieHeaderCacheSize(16);
+        processor.setMaxParsedCookies(3);
+        String cookies = "a=1 version=0 path=null domain=null\nb=2 version=0 path=null domain=null\n";
+        assertEquals(cookies, parse(processor, "a=1; b=2"));
+        assertEquals(cookies, parse(processor, "a=1; b=2"));
+        assertEquals(1, processor.getCookieHeaderCacheHitCount());
+        assertEquals(1, processor.getCookieHeaderCacheMissCount());
+
+        // Cached, but parsed again as its cookies do not fit in what is left of the budget
+        MimeHeaders headers = headers("c=3; d=4");
+        byte[] bytes = "a=1; b=2".getBytes(StandardCharsets.ISO_8859_1);
+        headers.addValue("Cookie").setBytes(bytes, 0, bytes.length);
+        assertEquals("c=3 version=0 path=null domain=null\nd=4 version=0 path=null domain=null\n" +
+                "a=1 version=0 path=null domain=null\n", parse(processor, headers));
+        assertEquals(1, processor.getCookieHeaderCacheHitCount());
+        assertEquals(3, processor.getCookieHeaderCacheMissCount());
+
+        // Invalid cookies are logged every time
+        processor = new SameSiteLegacyCookieProcessor();
+        processor.setCookieHeaderCacheSize(16);
+        cookies = "a=1 version=0 path=null domain=null\n";
+        assertEquals(cookies, parse(processor, "a=1; $Other=1"));
+        assertEquals(cookies, parse(processor, "a=1; $Other=1"));
+        assertEquals(0, processor.getCookieHeaderCacheHitCount());
+        assertEquals(2, processor.getCookieHeaderCacheMissCount());
+    }
+
+    @Test
+    public void testEscapedBackslashBeforeClosingQuote() {
+        SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+        assertEquals("a=x\"y\\\\ version=0 path=null domain=null\nb=2 version=0 path=null domain=null\n",
+                parseAll(processor, "a=\"x\\\"y\\\\\"; b=2"));
+    }
+
+    @Test
+    public void testLongHeader() {
+        SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+        LegacyCookieProcessor tomcat = new LegacyCookieProcessor();
+        StringBuilder header = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            header.append("cookie_").append(i).append('=');
+            if (i % 3 == 0) {
+                header.append("\"quoted value ").append(i).append(" with \\\"escapes\\\" inside\"");
+            } else {
+                header.append("eyJhbGciOiJIUzI1NiIsInR5cCI6IkpXVCJ9.").append(i).append("-abc_DEF+ghi");
+            }
+            header.append("; ");
+        }
+        String cookieHeader = header.toString();
+        String expected = parse(tomcat, cookieHeader);
+        assertEquals(expected, parseAll(processor, cookieHeader));
+        assertEquals(50, expected.split("\n").length);
+    }
+
+    @Test
+    public void testFindCookieValue() {
+        SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+        Random random = new Random(20201120);
+        String[] names = {"name", "JSESSIONID", "value", "missing"};
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder header = new StringBuilder();
+            int parts = 1 + random.nextInt(40);
+            for (int j = 0; j < parts; j++) {
+                String fragment = FRAGMENTS[random.nextInt(FRAGMENTS.length)];
+                if (fragment.charAt(0) >= 0x20 && fragment.charAt(0) <= 0x7e) {
+                    header.append(fragment);
+                }
+            }
+            MimeHeaders headers = headers(header.toString());
+            ServerCookies serverCookies = new ServerCookies(4);
+            processor.parseCookieHeader(headers, serverCookies);
+            for (String name : names) {
+                String expected = null;
+                for (int j = 0; j < serverCookies.getCookieCount() && expected == null; j++) {
+                    ServerCookie cookie = serverCookies.getCookie(j);
+                    if (cookie.getName().equals(name)) {
+                        cookie.getValue().getByteChunk().setCharset(processor.getCharset());
+                        expected = cookie.getValue().toString();
+                    }
+                }
+                assertEquals(header + " " + name, expected, processor.findCookieValue(headers, name));
+            }
+        }
+    }
+
+    @Test
+    public void testFindLegacyCookieValue() {
+        SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+        processor.setDualCookies(true);
+        assertEquals("1", processor.findCookieValue(headers("a_legacy=1; b=2"), "a"));
+        assertEquals("3", processor.findCookieValue(headers("a_legacy=1; a=3"), "a"));
+        assertEquals("\"q\"", processor.findCookieValue(headers("a=\"\\\"q\\\"\""), "a"));
+        assertNull(processor.findCookieValue(headers("b_legacy=1"), "a"));
+        // First cookie with the name, legacy names looked up as they are
+        assertEquals("1", processor.findCookieValue(headers("a=1; a=2"), "a"));
+        assertEquals("1", processor.findCookieValue(headers("a_legacy=1; a=3"), "a_legacy"));
+    }
+
+    private static MimeHeaders headers(String cookieHeader) {
+        MimeHeaders headers = new MimeHeaders();
+        byte[] bytes = cookieHeader.getBytes(StandardCharsets.ISO_8859_1);
+        headers.addValue("Cookie").setBytes(bytes, 0, bytes.length);
+        return headers;
+    }
+
+    private static MimeHeaders stringHeaders(String cookieHeader) {
+        MimeHeaders headers = new MimeHeaders();
+        headers.addValue("Cookie").setString(cookieHeader);
+        return headers;
+    }
+
+    private static MimeHeaders charHeaders(String cookieHeader) {
+        MimeHeaders headers = new MimeHeaders();
+        // Offset, so the parser does not depend on the header starting the buffer
+        char[] buffer = ("abc" + cookieHeader).toCharArray();
+        headers.addValue("Cookie").setChars(buffer, 3, cookieHeader.length());
+        return headers;
+    }
+
+    /**
+     * @return cookies of the header, checked to be the same whether the header is bytes, a String or chars
+     */
+    private static String parseAll(CookieProcessor processor, String cookieHeader) {
+        String cookies = parse(processor, cookieHeader);
+        assertEquals(cookieHeader, cookies, parse(processor, stringHeaders(cookieHeader)));
+        assertEquals(cookieHeader, cookies, parse(processor, charHeaders(cookieHeader)));
+        return cookies;
+    }
+
+    private static String parse(CookieProcessor processor, String cookieHeader) {
+        MimeHeaders headers = new MimeHeaders();
+        byte[] bytes = cookieHeader.getBytes(StandardCharsets.ISO_8859_1);
+        // Offset, so the parser does not depend on the header starting the buffer
+        byte[] buffer = new byte[bytes.length + 3];
+        System.arraycopy(bytes, 0, buffer, 3, bytes.length);
+        headers.addValue("Cookie").setBytes(buffer, 3, bytes.length);
+        return parse(processor, headers);
+    }
+
+    private static String parse(CookieProcessor processor, MimeHeaders headers) {
+        ServerCookies serverCookies = new ServerCookies(4);
+        try {
+            processor.parseCookieHeader(headers, serverCookies);
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < serverCookies.getCookieCount(); i++) {
+            ServerCookie cookie = serverCookies.getCookie(i);
+            result.append(cookie.getName()).append('=').append(cookie.getValue())
+                    .append(" version=").append(cookie.getVersion())
+                    .append(" path=").append(cookie.getPath())
+                    .append(" domain=").append(cookie.getDomain()).append('\n');
+        }
+        return result.toString();
+    }
+}
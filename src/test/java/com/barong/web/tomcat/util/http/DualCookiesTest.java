@@ -0,0 +1,147 @@
+package com.barong.web.tomcat.util.http;
+
+import java.nio.charset.StandardCharsets;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.tomcat.util.http.CookieProcessor;
+import org.apache.tomcat.util.http.MimeHeaders;
+import org.apache.tomcat.util.http.SameSiteCookies;
+import org.apache.tomcat.util.http.ServerCookies;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.StrictStubs.class)
+public class DualCookiesTest {
+
+    @Mock
+    HttpServletRequest request;
+
+    @Mock
+    HttpServletResponse response;
+
+    @Mock
+    FilterChain chain;
+
+    @Mock
+    FilterConfig filterConfig;
+
+    @Test
+    public void testGenerateHeader() {
+        SameSiteLegacyCookieProcessor legacyProcessor = new SameSiteLegacyCookieProcessor();
+        legacyProcessor.setSameSiteCookies(SameSiteCookies.NONE.getValue());
+        legacyProcessor.setDualCookies(true);
+        SameSiteRfc6265CookieProcessor rfc6265Processor = new SameSiteRfc6265CookieProcessor();
+        rfc6265Processor.setSameSiteCookies(SameSiteCookies.NONE.getValue());
+        rfc6265Processor.setDualCookies(true);
+        for (SameSiteCookieAppender processor : new SameSiteCookieAppender[] {legacyProcessor, rfc6265Processor}) {
+            String header = ((CookieProcessor) processor)
+                    .generateHeader(new Cookie("test", "value"), request);
+            assertTrue(header, header.startsWith("test=value"));
+            assertTrue(header, header.endsWith("; SameSite=None; Secure"));
+            header = ((CookieProcessor) processor)
+                    .generateHeader(new Cookie("test_legacy", "value"), request);
+            assertTrue(header, header.startsWith("test_legacy=value"));
+            assertFalse(header, header.contains("SameSite"));
+        }
+        verify(request, never()).getHeader(any());
+    }
+
+    @Test
+    public void testParseCookieHeader() {
+        SameSiteLegacyCookieProcessor legacyProcessor = new SameSiteLegacyCookieProcessor();
+        legacyProcessor.setDualCookies(true);
+        SameSiteRfc6265CookieProcessor rfc6265Processor = new SameSiteRfc6265CookieProcessor();
+        rfc6265Processor.setDualCookies(true);
+        for (CookieProcessor processor :
+                new CookieProcessor[] {legacyProcessor, rfc6265Processor}) {
+            ServerCookies serverCookies = parse(processor, "a=1; a_legacy=1; b_legacy=2; c=3");
+            assertEquals(3, serverCookies.getCookieCount());
+            assertEquals("a", serverCookies.getCookie(0).getName().toString());
+            assertEquals("1", serverCookies.getCookie(0).getValue().toString());
+            assertEquals("b", serverCookies.getCookie(1).getName().toString());
+            assertEquals("2", serverCookies.getCookie(1).getValue().toString());
+            assertEquals("c", serverCookies.getCookie(2).getName().toString());
+            assertEquals("3", serverCookies.getCookie(2).getValue().toString());
+
+            serverCookies = parse(processor, "_legacy=1");
+            assertEquals(1, serverCookies.getCookieCount());
+            assertEquals("_legacy", serverCookies.getCookie(0).getName().toString());
+        }
+    }
+
+    @Test
+    public void testParseCharCookieHeader() {
+        SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+        processor.setDualCookies(true);
+        for (boolean chars : new boolean[] {true, false}) {
+            MimeHeaders headers = new MimeHeaders();
+            String cookieHeader = "id_legacy=x; a=1; a_legacy=2; b_legacy=3";
+            if (chars) {
+                char[] buffer = ("abc" + cookieHeader).toCharArray();
+                headers.addValue("Cookie").setChars(buffer, 3, cookieHeader.length());
+            } else {
+                headers.addValue("Cookie").setString(cookieHeader);
+            }
+            ServerCookies serverCookies = new ServerCookies(4);
+            processor.parseCookieHeader(headers, serverCookies);
+            assertEquals(3, serverCookies.getCookieCount());
+            assertEquals("id", serverCookies.getCookie(0).getName().toString());
+            assertEquals("x", serverCookies.getCookie(0).getValue().toString());
+            assertEquals("a", serverCookies.getCookie(1).getName().toString());
+            assertEquals("1", serverCookies.getCookie(1).getValue().toString());
+            assertEquals("b", serverCookies.getCookie(2).getName().toString());
+            assertEquals("3", serverCookies.getCookie(2).getValue().toString());
+        }
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        when(filterConfig.getInitParameter("legacyCookieSuffix")).thenReturn("-old");
+        SameSiteDualCookieFilter filter = new SameSiteDualCookieFilter();
+        filter.init(filterConfig);
+        ArgumentCaptor<ServletResponse> wrapped = ArgumentCaptor.forClass(ServletResponse.class);
+        filter.doFilter(request, response, chain);
+        verify(chain).doFilter(any(), wrapped.capture());
+
+        Cookie cookie = new Cookie("test", "value");
+        cookie.setPath("/app");
+        cookie.setMaxAge(60);
+        cookie.setHttpOnly(true);
+        ((HttpServletResponse) wrapped.getValue()).addCookie(cookie);
+        ArgumentCaptor<Cookie> cookies = ArgumentCaptor.forClass(Cookie.class);
+        verify(response, times(2)).addCookie(cookies.capture());
+        assertEquals(cookie, cookies.getAllValues().get(0));
+        Cookie legacy = cookies.getAllValues().get(1);
+        assertEquals("test-old", legacy.getName());
+        assertEquals("value", legacy.getValue());
+        assertEquals("/app", legacy.getPath());
+        assertEquals(60, legacy.getMaxAge());
+        assertTrue(legacy.isHttpOnly());
+    }
+
+    private static ServerCookies parse(CookieProcessor processor, String cookieHeader) {
+        MimeHeaders headers = new MimeHeaders();
+        byte[] bytes = cookieHeader.getBytes(StandardCharsets.ISO_8859_1);
+        headers.addValue("Cookie").setBytes(bytes, 0, bytes.length);
+        ServerCookies serverCookies = new ServerCookies(4);
+        processor.parseCookieHeader(headers, serverCookies);
+        return serverCookies;
+    }
+}
@@ -0,0 +1,118 @@
+package com.barong.web.tomcat.util.http;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.Cookie;
+
+import org.apache.tomcat.util.http.CookieProcessor;
+
+/**
+ * Set-Cookie header throughput on platform threads and, on Java 21 and later, on virtual threads,
+ * with and without per thread header buffers.
+ * <br>
+ * <br>Every task stands for a request: it runs on a new virtual thread, or on a pooled platform thread,
+ * and generates a few headers. Not a unit test, run its main method:
+ * <br>{@code java -cp target/classes:target/test-classes:<dependencies> com.barong.web.tomcat.util.http.HeaderGenerationBenchmark}
+ */
+public final class HeaderGenerationBenchmark {
+
+    private static final int TASKS = 200_000;
+
+    private static final int COOKIES_PER_TASK = 4;
+
+    private static final int ROUNDS = 5;
+
+    private HeaderGenerationBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+        if (virtualThreads == null) {
+            System.out.println("Virtual threads are not available on Java " + System.getProperty("java.version"));
+        }
+        int platformThreads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(platformThreads);
+        try {
+            for (boolean threadLocalBuffers : new boolean[] {true, false}) {
+                for (CookieProcessor processor : processors(threadLocalBuffers)) {
+                    String name = processor.getClass().getSimpleName() + " threadLocalBuffers=" + threadLocalBuffers;
+                    report(name + " platform threads (" + platformThreads + ")", run(pool, processor));
+                    if (virtualThreads != null) {
+                        report(name + " virtual threads", run(virtualThreads, processor));
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+            if (virtualThreads != null) {
+                virtualThreads.shutdown();
+            }
+        }
+    }
+
+    private static List<CookieProcessor> processors(boolean threadLocalBuffers) {
+        SameSiteLegacyCookieProcessor legacy = new SameSiteLegacyCookieProcessor();
+        legacy.setThreadLocalBuffers(threadLocalBuffers);
+        SameSiteRfc6265CookieProcessor rfc6265 = new SameSiteRfc6265CookieProcessor();
+        rfc6265.setThreadLocalBuffers(threadLocalBuffers);
+        List<CookieProcessor> processors = new ArrayList<>();
+        processors.add(legacy);
+        processors.add(rfc6265);
+        return processors;
+    }
+
+    /**
+     * @return best throughput of all rounds, in headers per second
+     */
+    private static double run(ExecutorService executor, CookieProcessor processor) throws Exception {
+        double best = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            List<Future<?>> futures = new ArrayList<>(TASKS);
+            for (int i = 0; i < TASKS; i++) {
+                int task = i;
+                futures.add(executor.submit(() -> generate(processor, task)));
+            }
+            long length = 0;
+            for (Future<?> future : futures) {
+                length += (Integer) future.get();
+            }
+            long elapsed = System.nanoTime() - start;
+            if (length == 0) {
+                throw new IllegalStateException("No header generated");
+            }
+            best = Math.max(best, TASKS * COOKIES_PER_TASK / (elapsed / (double) TimeUnit.SECONDS.toNanos(1)));
+        }
+        return best;
+    }
+
+    private static int generate(CookieProcessor processor, int task) {
+        int length = 0;
+        for (int i = 0; i < COOKIES_PER_TASK; i++) {
+            Cookie cookie = new Cookie("cookie" + i, "value" + task);
+            cookie.setPath("/app");
+            cookie.setMaxAge(3600);
+            cookie.setHttpOnly(true);
+            length += processor.generateHeader(cookie, null).length();
+        }
+        return length;
+    }
+
+    private static void report(String name, double headersPerSecond) {
+        System.out.printf("%-75s %,12.0f headers/s%n", name, headersPerSecond);
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.barong.web.tomcat.util.http;
+
+import java.util.Random;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.tomcat.util.http.LegacyCookieProcessor;
+import org.apache.tomcat.util.http.SameSiteCookies;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.StrictStubs.class)
+public class HeaderTemplatesTest {
+
+    private static final String[] VALUES = {"value", "", "with space", "\"quoted\"", "a\\b", "a/b", "a=b", "1234"};
+
+    private static final String[] PATHS = {null, "/", "/app", "/a b"};
+
+    private static final String[] DOMAINS = {null, "example.com", ".example.com"};
+
+    private static final int[] MAX_AGES = {-1, 0, 3600};
+
+    @Mock
+    HttpServletRequest request;
+
+    @Test
+    public void testSameAsTomcat() {
+        SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+        LegacyCookieProcessor tomcat = new LegacyCookieProcessor();
+        Random random = new Random(20201117);
+        for (int i = 0; i < 5000; i++) {
+            Cookie cookie = new Cookie("c" + random.nextInt(4), VALUES[random.nextInt(VALUES.length)]);
+            String path = PATHS[random.nextInt(PATHS.length)];
+            if (path != null) {
+                cookie.setPath(path);
+            }
+            String domain = DOMAINS[random.nextInt(DOMAINS.length)];
+            if (domain != null) {
+                cookie.setDomain(domain);
+            }
+            if (random.nextInt(8) == 0) {
+                cookie.setComment("comment");
+            }
+            cookie.setVersion(random.nextInt(2));
+            cookie.setMaxAge(MAX_AGES[random.nextInt(MAX_AGES.length)]);
+            cookie.setSecure(random.nextBoolean());
+            cookie.setHttpOnly(random.nextBoolean());
+            if (i == 2500) {
+                processor.setAlwaysAddExpires(false);
+                tomcat.setAlwaysAddExpires(false);
+                processor.setThreadLocalBuffers(false);
+            }
+            assertEquals(withoutExpiresDate(tomcat.generateHeader(cookie)),
+                    withoutExpiresDate(processor.generateHeader(cookie, null)));
+        }
+    }
+
+    @Test
+    public void testLongValues() {
+        SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+        LegacyCookieProcessor tomcat = new LegacyCookieProcessor();
+        String chars = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789-_.~+/=";
+        String special = " \t\"\\,;()<>@:[]?{}";
+        Random random = new Random(20201118);
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder value = new StringBuilder();
+            int length = random.nextInt(300);
+            for (int j = 0; j < length; j++) {
+                value.append(random.nextInt(50) == 0 ? special.charAt(random.nextInt(special.length())) :
+                        chars.charAt(random.nextInt(chars.length())));
+            }
+            if (random.nextInt(10) == 0) {
+                value.insert(0, '"').append('"');
+            }
+            Cookie cookie = new Cookie("jwt", value.toString());
+            cookie.setVersion(random.nextInt(2));
+            assertEquals(tomcat.generateHeader(cookie), processor.generateHeader(cookie, null));
+        }
+    }
+
+    @Test
+    public void testControlCharacters() {
+        SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+        for (String value : new String[] {"abc\u0001", "abcdefghijk\r\nSet-Cookie: x=y", "abcdefgh\u00e9ijk", "\u0100"}) {
+            try {
+                processor.generateHeader(new Cookie("test", value), null);
+                fail(value);
+            } catch (IllegalArgumentException e) {
+                assertEquals("Control character in cookie value or attribute.", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testSameSiteVerdictIsPartOfTheTemplate() {
+        SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+        processor.setSameSiteCookies(SameSiteCookies.NONE.getValue());
+        when(request.isSecure()).thenReturn(true);
+        when(request.getHeader("sec-ch-ua")).thenReturn(null);
+        when(request.getHeader("user-agent")).thenReturn(
+                "Mozilla/5.0 (iPhone; CPU iPhone OS 13_3_1 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/12.1.1 Mobile/15E148 Safari/604.1",
+                "Mozilla/5.0 (iPhone; CPU iPhone OS 12_3_1 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/12.1.1 Mobile/15E148 Safari/604.1");
+        Cookie cookie = new Cookie("test", "1");
+        cookie.setPath("/");
+        assertEquals("test=1; Path=/; SameSite=None; Secure", processor.generateHeader(cookie, request));
+        cookie.setValue("2");
+        assertEquals("test=2; Path=/", processor.generateHeader(cookie, request));
+        cookie.setMaxAge(60);
+        String header = processor.generateHeader(cookie, request);
+        assertTrue(header, header.matches("test=2; Expires=[^;]+ GMT; Path=/"));
+    }
+
+    private static String withoutExpiresDate(String header) {
+        return header.replaceAll("Expires=[^;]+ GMT", "Expires=");
+    }
+}
@@ -0,0 +1,63 @@
+package com.barong.web.tomcat.util.http;
+
+import javax.servlet.http.Cookie;
+
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.http.LegacyCookieProcessor;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class PreparedCookieTest {
+
+    private static final String[] VALUES = {"value", "", "with space", "\"quoted\"", "a\\b", "a/b", "a=b", "1234"};
+
+    @Test
+    public void testSameAsUnprepared() {
+        SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+        LegacyCookieProcessor tomcat = new LegacyCookieProcessor();
+        for (String value : VALUES) {
+            for (int version = 0; version < 2; version++) {
+                Cookie cookie = new Cookie("test", value);
+                cookie.setPath("/app");
+                cookie.setVersion(version);
+                PreparedCookie prepared = processor.prepareCookie(cookie);
+                assertEquals(tomcat.generateHeader(cookie), processor.generateHeader(prepared, null));
+                ByteChunk header = new ByteChunk();
+                processor.generateHeader(prepared, null, header);
+                assertEquals(tomcat.generateHeader(cookie), header.toString());
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidCookie() {
+        SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+        try {
+            processor.prepareCookie(new Cookie("test", "a\r\nb"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Control character in cookie value or attribute.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testChangesDropPreparedState() {
+        SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+        PreparedCookie cookie = processor.prepareCookie(new Cookie("test", "a/b"));
+        assertNotNull(cookie.prepared(processor, 0));
+        assertNull(cookie.prepared(new SameSiteLegacyCookieProcessor(), 0));
+        assertEquals("test=a/b", processor.generateHeader(cookie, null));
+
+        processor.setForwardSlashIsSeparator(true);
+        assertEquals("test=\"a/b\"; Version=1", processor.generateHeader(cookie, null));
+
+        cookie = processor.prepareCookie(cookie);
+        cookie.setValue("a b");
+        assertNull(cookie.prepared(processor, 1));
+        assertEquals("test=\"a b\"; Version=1", processor.generateHeader(cookie, null));
+    }
+}
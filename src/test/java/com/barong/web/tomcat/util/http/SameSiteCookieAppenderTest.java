@@ -1,8 +1,11 @@
 package com.barong.web.tomcat.util.http;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 
+import org.apache.tomcat.util.http.CookieProcessorBase;
 import org.apache.tomcat.util.http.SameSiteCookies;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -19,8 +22,13 @@ import static com.barong.web.tomcat.util.http.SameSiteCookieAppender.isMacosxVer
 import static com.barong.web.tomcat.util.http.SameSiteCookieAppender.isSafari;
 import static com.barong.web.tomcat.util.http.SameSiteCookieAppender.isUcBrowser;
 import static com.barong.web.tomcat.util.http.SameSiteCookieAppender.isUcBrowserVersionAtLeast;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.StrictStubs.class)
@@ -29,12 +37,44 @@ public class SameSiteCookieAppenderTest {
     @Mock
     HttpServletRequest request;
 
+    @Test
+    public void testSecureRequest() {
+        when(request.isSecure()).thenReturn(true);
+        when(request.getHeader("sec-ch-ua")).thenReturn(null);
+        when(request.getHeader("user-agent")).thenReturn(
+                "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/84.0.4147.105 Safari/537.36");
+        Cookie secure = new Cookie("a", "b");
+        secure.setSecure(true);
+        Cookie plain = new Cookie("a", "b");
+        SameSiteLegacyCookieProcessor legacyProcessor = new SameSiteLegacyCookieProcessor();
+        SameSiteRfc6265CookieProcessor rfc6265Processor = new SameSiteRfc6265CookieProcessor();
+        for (CookieProcessorBase processor : new CookieProcessorBase[] {legacyProcessor, rfc6265Processor}) {
+            clearInvocations(request);
+            processor.setSameSiteCookies(SameSiteCookies.LAX.getValue());
+            assertEquals("a=b; Secure; SameSite=Lax", processor.generateHeader(secure, request));
+            assertEquals("a=b; SameSite=Lax", processor.generateHeader(plain, request));
+
+            processor.setSameSiteCookies(SameSiteCookies.STRICT.getValue());
+            assertEquals("a=b; Secure; SameSite=Strict", processor.generateHeader(secure, request));
+            assertEquals("a=b; SameSite=Strict", processor.generateHeader(plain, request));
+            // The user-agent is only classified for SameSite=None
+            verify(request, never()).getHeader("user-agent");
+
+            processor.setSameSiteCookies(SameSiteCookies.NONE.getValue());
+            assertEquals("a=b; Secure; SameSite=None", processor.generateHeader(secure, request));
+            assertEquals("a=b; SameSite=None; Secure", processor.generateHeader(plain, request));
+            assertEquals(Arrays.asList("a=b; Secure; SameSite=None", "a=b; SameSite=None; Secure"),
+                    ((SameSiteCookieAppender) processor).generateHeaders(Arrays.asList(secure, plain), request));
+        }
+    }
+
     @Test
     public void testAppendSameSite() {
         SameSiteLegacyCookieProcessor cookieProcessor = new SameSiteLegacyCookieProcessor();
         cookieProcessor.setSameSiteCookies(SameSiteCookies.NONE.getValue());
         Cookie cookie = new Cookie("test", "test");
         when(request.isSecure()).thenReturn(true);
+        when(request.getHeader("sec-ch-ua")).thenReturn(null);
         String userAgent = "Mozilla/5.0 (iPhone; CPU iPhone OS 13_3_1 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/12.1.1 Mobile/15E148 Safari/604.1";
         when(request.getHeader("user-agent")).thenReturn(userAgent);
         String header = cookieProcessor.generateHeader(cookie, request);
@@ -44,6 +84,50 @@ public class SameSiteCookieAppenderTest {
         header = cookieProcessor.generateHeader(cookie, request);
         assertFalse(header.contains("SameSite=None; Secure"));
     }
+
+
+    @Test
+    public void testSameSiteVerdictIsComputedOncePerRequest() {
+        SameSiteLegacyCookieProcessor cookieProcessor = new SameSiteLegacyCookieProcessor();
+        cookieProcessor.setSameSiteCookies(SameSiteCookies.NONE.getValue());
+        when(request.isSecure()).thenReturn(true);
+        when(request.getHeader("sec-ch-ua")).thenReturn(null);
+        String userAgent = "Mozilla/5.0 (iPhone; CPU iPhone OS 13_3_1 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/12.1.1 Mobile/15E148 Safari/604.1";
+        when(request.getHeader("user-agent")).thenReturn(userAgent);
+        when(request.getAttribute(SameSiteCookieAppender.SAME_SITE_SUPPORTED_ATTRIBUTE)).thenReturn(null, Boolean.TRUE);
+        assertTrue(cookieProcessor.generateHeader(new Cookie("first", "1"), request).contains("SameSite=None; Secure"));
+        assertTrue(cookieProcessor.generateHeader(new Cookie("second", "2"), request).contains("SameSite=None; Secure"));
+        verify(request, times(1)).getHeader("user-agent");
+        verify(request).setAttribute(SameSiteCookieAppender.SAME_SITE_SUPPORTED_ATTRIBUTE, Boolean.TRUE);
+    }
+
+
+    @Test
+    public void testClientHints() {
+        SameSiteLegacyCookieProcessor cookieProcessor = new SameSiteLegacyCookieProcessor();
+        cookieProcessor.setSameSiteCookies(SameSiteCookies.NONE.getValue());
+        when(request.isSecure()).thenReturn(true);
+        when(request.getHeader("sec-ch-ua")).thenReturn("\" Not A;Brand\";v=\"99\", \"Chromium\";v=\"92\", \"Google Chrome\";v=\"92\"");
+        assertTrue(cookieProcessor.generateHeader(new Cookie("test", "test"), request).contains("SameSite=None; Secure"));
+        when(request.getHeader("sec-ch-ua")).thenReturn("\"Chromium\";v=\"66\"");
+        assertFalse(cookieProcessor.generateHeader(new Cookie("test", "test"), request).contains("SameSite=None; Secure"));
+        assertEquals(2, cookieProcessor.getClientHintsClassificationCount());
+        assertEquals(0, cookieProcessor.getUserAgentClassificationCount());
+    }
+
+
+    @Test
+    public void testCoyoteRequest() {
+        SameSiteLegacyCookieProcessor cookieProcessor = new SameSiteLegacyCookieProcessor();
+        org.apache.coyote.Request coyoteRequest = new org.apache.coyote.Request();
+        byte[] userAgent = "Mozilla/5.0 (iPhone; CPU iPhone OS 12_3_1 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/12.1.1 Mobile/15E148 Safari/604.1"
+                .getBytes(StandardCharsets.ISO_8859_1);
+        coyoteRequest.getMimeHeaders().addValue("User-Agent").setBytes(userAgent, 0, userAgent.length);
+        assertFalse(cookieProcessor.sameSiteSupportedUserAgent(coyoteRequest));
+        byte[] clientHints = "\"Chromium\";v=\"92\"".getBytes(StandardCharsets.ISO_8859_1);
+        coyoteRequest.getMimeHeaders().addValue("Sec-CH-UA").setBytes(clientHints, 0, clientHints.length);
+        assertTrue(cookieProcessor.sameSiteSupportedUserAgent(coyoteRequest));
+    }
     
     
     @Test
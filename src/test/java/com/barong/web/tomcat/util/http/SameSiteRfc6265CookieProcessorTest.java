@@ -0,0 +1,110 @@
+package com.barong.web.tomcat.util.http;
+
+import java.util.Arrays;
+import java.util.Random;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.tomcat.util.http.Rfc6265CookieProcessor;
+import org.apache.tomcat.util.http.SameSiteCookies;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.StrictStubs.class)
+public class SameSiteRfc6265CookieProcessorTest {
+
+    private static final String[] VALUES = {"value", "", "\"quoted\"", "a/b", "a=b", "with space", "a;b", "\"a\\b\""};
+
+    private static final String[] PATHS = {null, "", "/", "/app", "/a;b", "/é"};
+
+    private static final String[] DOMAINS = {null, "", "example.com", ".example.com", "a-.com", "example.com-", "ex_ample.com"};
+
+    private static final int[] MAX_AGES = {-1, 0, 3600};
+
+    @Mock
+    HttpServletRequest request;
+
+    @Test
+    public void testSameAsTomcat() {
+        SameSiteRfc6265CookieProcessor processor = new SameSiteRfc6265CookieProcessor();
+        Rfc6265CookieProcessor tomcat = new Rfc6265CookieProcessor();
+        for (SameSiteCookies sameSite : new SameSiteCookies[] {SameSiteCookies.UNSET, SameSiteCookies.LAX}) {
+            processor.setSameSiteCookies(sameSite.getValue());
+            tomcat.setSameSiteCookies(sameSite.getValue());
+            Random random = new Random(20201118);
+            for (int i = 0; i < 5000; i++) {
+                Cookie cookie = new Cookie("c" + random.nextInt(4), VALUES[random.nextInt(VALUES.length)]);
+                cookie.setPath(PATHS[random.nextInt(PATHS.length)]);
+                String domain = DOMAINS[random.nextInt(DOMAINS.length)];
+                if (domain != null) {
+                    cookie.setDomain(domain);
+                }
+                cookie.setMaxAge(MAX_AGES[random.nextInt(MAX_AGES.length)]);
+                cookie.setSecure(random.nextBoolean());
+                cookie.setHttpOnly(random.nextBoolean());
+                processor.setThreadLocalBuffers(i < 2500);
+                assertEquals(generate(tomcat, cookie), generate(processor, cookie));
+            }
+        }
+    }
+
+    @Test
+    public void testAppendSameSite() {
+        SameSiteRfc6265CookieProcessor processor = new SameSiteRfc6265CookieProcessor();
+        processor.setSameSiteCookies(SameSiteCookies.NONE.getValue());
+        Cookie cookie = new Cookie("test", "test");
+        cookie.setPath("/");
+        when(request.isSecure()).thenReturn(true);
+        when(request.getHeader("sec-ch-ua")).thenReturn(null);
+        when(request.getHeader("user-agent")).thenReturn(
+                "Mozilla/5.0 (iPhone; CPU iPhone OS 13_3_1 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/12.1.1 Mobile/15E148 Safari/604.1",
+                "Mozilla/5.0 (iPhone; CPU iPhone OS 12_3_1 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/12.1.1 Mobile/15E148 Safari/604.1");
+        assertEquals("test=test; Path=/; SameSite=None; Secure", processor.generateHeader(cookie, request));
+        assertEquals("test=test; Path=/", processor.generateHeader(cookie, request));
+    }
+
+    @Test
+    public void testNotSecureRequest() {
+        SameSiteRfc6265CookieProcessor processor = new SameSiteRfc6265CookieProcessor();
+        processor.setSameSiteCookies(SameSiteCookies.NONE.getValue());
+        when(request.isSecure()).thenReturn(false);
+        String header = processor.generateHeader(new Cookie("test", "test"), request);
+        assertFalse(header, header.contains("SameSite"));
+        assertEquals("test=test", processor.generateHeader(new Cookie("test", "test"), null));
+    }
+
+    @Test
+    public void testGenerateHeaders() {
+        SameSiteRfc6265CookieProcessor processor = new SameSiteRfc6265CookieProcessor();
+        processor.setSameSiteCookies(SameSiteCookies.NONE.getValue());
+        when(request.isSecure()).thenReturn(true);
+        when(request.getHeader("sec-ch-ua")).thenReturn(null);
+        when(request.getHeader("user-agent")).thenReturn(
+                "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/84.0.4147.105 Safari/537.36");
+        Cookie expired = new Cookie("expired", "");
+        expired.setMaxAge(0);
+        assertEquals(Arrays.asList("first=1; SameSite=None; Secure",
+                "expired=; Max-Age=0; Expires=Thu, 01-Jan-1970 00:00:10 GMT; SameSite=None; Secure"),
+                processor.generateHeaders(Arrays.asList(new Cookie("first", "1"), expired), request));
+        verify(request, times(1)).getHeader("user-agent");
+        String header = processor.generateHeader(new Cookie("second", "2"), request);
+        assertTrue(header, header.endsWith("; SameSite=None; Secure"));
+    }
+
+    private static String generate(Rfc6265CookieProcessor processor, Cookie cookie) {
+        try {
+            return processor.generateHeader(cookie, null).replaceAll("Expires=[^;]+ GMT", "Expires=");
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+    }
+}
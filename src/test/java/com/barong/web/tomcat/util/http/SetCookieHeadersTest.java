@@ -0,0 +1,92 @@
+package com.barong.web.tomcat.util.http;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.coyote.Response;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.http.CookieProcessor;
+import org.apache.tomcat.util.http.LegacyCookieProcessor;
+import org.apache.tomcat.util.http.SameSiteCookies;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.StrictStubs.class)
+public class SetCookieHeadersTest {
+
+    @Mock
+    HttpServletRequest request;
+
+    @Test
+    public void testBytesSameAsString() {
+        when(request.isSecure()).thenReturn(true);
+        when(request.getHeader("sec-ch-ua")).thenReturn("\"Chromium\";v=\"92\"");
+        SameSiteLegacyCookieProcessor legacyProcessor = new SameSiteLegacyCookieProcessor();
+        legacyProcessor.setSameSiteCookies(SameSiteCookies.NONE.getValue());
+        SameSiteRfc6265CookieProcessor rfc6265Processor = new SameSiteRfc6265CookieProcessor();
+        rfc6265Processor.setSameSiteCookies(SameSiteCookies.NONE.getValue());
+        Cookie[] cookies = {new Cookie("a", "1"), new Cookie("b", "x_y"), new Cookie("c", "a.b")};
+        cookies[1].setPath("/app");
+        cookies[2].setMaxAge(3600);
+        cookies[2].setDomain("example.com");
+        for (SameSiteCookieAppender processor : new SameSiteCookieAppender[] {legacyProcessor, rfc6265Processor}) {
+            for (Cookie cookie : cookies) {
+                String expected = ((CookieProcessor) processor).generateHeader(cookie, request);
+                ByteChunk header = new ByteChunk();
+                header.setLimit(-1);
+                processor.generateHeader(cookie, request, header);
+                header.setCharset(processor instanceof SameSiteLegacyCookieProcessor ?
+                        legacyProcessor.getCharset() : rfc6265Processor.getCharset());
+                assertEquals(expected, header.toString());
+            }
+        }
+    }
+
+    @Test
+    public void testAddCookie() {
+        SameSiteLegacyCookieProcessor processor = new SameSiteLegacyCookieProcessor();
+        Response response = new Response();
+        for (int request = 0; request < 2; request++) {
+            SetCookieHeaders.addCookie(response, processor, new Cookie("first", "1"), null);
+            SetCookieHeaders.addCookie(response, processor, new Cookie("second", "2"), null);
+            SetCookieHeaders.addCookie(response, new LegacyCookieProcessor(), new Cookie("third", "3"), null);
+            assertEquals(3, response.getMimeHeaders().size());
+            MessageBytes first = response.getMimeHeaders().getValue(0);
+            assertEquals(MessageBytes.T_BYTES, first.getType());
+            assertEquals("first=1", first.toString());
+            assertEquals("second=2", response.getMimeHeaders().getValue(1).toString());
+            assertEquals(MessageBytes.T_STR, response.getMimeHeaders().getValue(2).getType());
+            assertEquals("third=3", response.getMimeHeaders().getValue(2).toString());
+            response.recycle();
+        }
+    }
+
+    @Test
+    public void testInvalidCookie() {
+        Response response = new Response();
+        SetCookieHeaders.addCookie(response, new SameSiteLegacyCookieProcessor(), new Cookie("first", "1"), null);
+        Cookie legacyInvalid = new Cookie("a", "1");
+        legacyInvalid.setPath("/\u0001");
+        Cookie rfc6265Invalid = new Cookie("b", "x y");
+        for (Object[] invalid : new Object[][] {{new SameSiteLegacyCookieProcessor(), legacyInvalid},
+                {new SameSiteRfc6265CookieProcessor(), rfc6265Invalid}}) {
+            try {
+                SetCookieHeaders.addCookie(response, (CookieProcessor) invalid[0], (Cookie) invalid[1], null);
+                fail();
+            } catch (IllegalArgumentException expected) {
+            }
+            assertEquals(1, response.getMimeHeaders().size());
+            assertEquals("first=1", response.getMimeHeaders().getValue(0).toString());
+        }
+        SetCookieHeaders.addCookie(response, new SameSiteLegacyCookieProcessor(), new Cookie("second", "2"), null);
+        assertEquals(2, response.getMimeHeaders().size());
+        assertEquals("second=2", response.getMimeHeaders().getValue(1).toString());
+    }
+}
@@ -0,0 +1,39 @@
+package com.barong.web.tomcat.util.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs against the Java 8 classes and, with the java17 profile, against the multi-release jar.
+ */
+public class SlotsTest {
+
+    @Test
+    public void testReferenceSlots() {
+        ReferenceSlots<String> slots = new ReferenceSlots<>(4);
+        assertEquals(4, slots.length());
+        assertNull(slots.get(3));
+        slots.lazySet(3, "a");
+        assertEquals("a", slots.get(3));
+        slots.set(3, null);
+        assertNull(slots.get(3));
+    }
+
+    @Test
+    public void testLongSlots() {
+        LongSlots slots = new LongSlots(2);
+        assertEquals(2, slots.length());
+        assertEquals(0L, slots.get(1));
+        assertTrue(slots.compareAndSet(1, 0L, 5L));
+        assertFalse(slots.compareAndSet(1, 0L, 6L));
+        while (!slots.weakCompareAndSet(1, 5L, 7L)) {
+            assertEquals(5L, slots.get(1));
+        }
+        assertEquals(7L, slots.get(1));
+        assertEquals(0L, slots.get(0));
+    }
+}
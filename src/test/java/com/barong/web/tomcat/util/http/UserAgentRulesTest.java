@@ -0,0 +1,204 @@
+package com.barong.web.tomcat.util.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UserAgentRulesTest {
+
+    // Differences between the bundled and the built-in rules on the generated user-agents
+    private static final int DIFFERENCES = 398;
+
+    private static final String[] USER_AGENTS = {
+            "Mozilla/5.0 (iPhone; CPU iPhone OS 12_3_1 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/12.1.1 Mobile/15E148 Safari/604.1",
+            "Mozilla/5.0 (iPhone; CPU iPhone OS 13_3_1 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/12.1.1 Mobile/15E148 Safari/604.1",
+            "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_14_5) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/11.1.2 Safari/605.1.15",
+            "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_5) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/11.1.2 Safari/605.1.15",
+            "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_14_6) AppleWebKit/601.7.8 (KHTML, like Gecko)",
+            "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_14_6) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/78.0.3904.108 Safari/537.36",
+            "Mozilla/5.0 (Linux; U; Android 4.4.2; zh-CN; HUAWEI MT7-TL00 Build/HuaweiMT7-TL00) AppleWebKit/537.36 (KHTML, like Gecko) Version/4.0 Chrome/40.0.2214.89 UCBrowser/11.3.8.909 Mobile Safari/537.36",
+            "Mozilla/5.0 (Linux; U; Android 4.4.2; zh-CN; HUAWEI MT7-TL00 Build/HuaweiMT7-TL00) AppleWebKit/537.36 (KHTML, like Gecko) Version/4.0 Chrome/40.0.2214.89 UCBrowser/12.13.2.909 Mobile Safari/537.36",
+            "Mozilla/5.0 (Linux; U; Android 4.4.2; zh-CN) AppleWebKit/537.36 (KHTML, like Gecko) Version/4.0 Chrome/57.0.2987.108 UCBrowser/12.13.5.1209 Mobile Safari/537.36",
+            "Mozilla/5.0 (X11; Linux i686) AppleWebKit/537.36 (KHTML, like Gecko) Ubuntu Chromium/51.0.2526.73 Chrome/51.0.2526.73 Safari/537.36",
+            "Mozilla/5.0 (X11; Linux i686) AppleWebKit/537.36 (KHTML, like Gecko) Ubuntu Chromium/67.0.2526.73 Chrome/67.0.2526.73 Safari/537.36",
+            "Mozilla/5.0 (X11; Linux i686) AppleWebKit/537.36 (KHTML, like Gecko) Ubuntu Chromium/50.0.2526.73 Chrome/50.0.2526.73 Safari/537.36",
+            "Mozilla/5.0 (Windows NT 10.0; Win64; x64; rv:78.0) Gecko/20100101 Firefox/78.0",
+            "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_14_6) AppleWebKit/605.1.15 (KHTML, like Gecko) Mobile/15E148",
+            "Mozilla/5.0 (Linux; U; Android 4.4.2; zh-CN) AppleWebKit/537.36 (KHTML, like Gecko) UCBrowser/ Mobile",
+            "Mozilla/5.0 (Linux; U; Android 4.4.2; zh-CN) AppleWebKit/537.36 (KHTML, like Gecko) UCBrowser/12.14 Mobile",
+            "UCBrowser/",
+    };
+
+    private static final String[] PLATFORMS = {
+            "(iPhone; CPU iPhone OS %s like Mac OS X)", "(iPad; CPU OS %s like Mac OS X)", "(Macintosh; Intel Mac OS X %s)",
+            "(Windows NT 10.0; Win64; x64)", "(X11; Linux x86_64)", "(Linux; U; Android 4.4.2; zh-CN)",
+    };
+
+    private static final String[] OS_VERSIONS = {
+            "11_4", "12_0", "12_3_1", "13_3_1", "10_13_6", "10_14", "10_14_6", "10_15_7", "11_0_1",
+    };
+
+    private static final String[] ENGINES = {
+            " AppleWebKit/605.1.15 (KHTML, like Gecko)", " AppleWebKit/537.36 (KHTML, like Gecko)", " Gecko/20100101",
+    };
+
+    private static final String[] BROWSERS = {
+            "", " Mobile/15E148", " Firefox/78.0", " Version/%v Safari/605.1.15", " Version/%v Mobile/15E148 Safari/604.1",
+            " Chrome/%c.0.4147.105 Safari/537.36", " Chromium/%c.0.2526.73 Chrome/%c.0.2526.73 Safari/537.36",
+            " CriOS/%c.0.3497.105 Mobile/15E148 Safari/605.1", " Chrome/%c.0.4147.105 Safari/537.36 Edg/%c.0.522.52",
+            " Version/4.0 Chrome/%c.0.2214.89 UCBrowser/%u Mobile Safari/537.36",
+    };
+
+    private static final String[] BROWSER_VERSIONS = {"11.1.2", "12.1.1", "14.0"};
+
+    private static final String[] CHROMIUM_VERSIONS = {"40", "50", "51", "66", "67", "84"};
+
+    private static final String[] UC_VERSIONS = {"11.3.8.909", "12.13.1.1", "12.13.2.909", "12.14.0.1", "13.0.0.1"};
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testBundledRulesMatchBuiltInRules() throws IOException {
+        UserAgentRules rules = bundledRules();
+        assertEquals(6, rules.size());
+        for (String userAgent : USER_AGENTS) {
+            assertSameAsBuiltIn(rules, userAgent);
+        }
+        for (String platform : PLATFORMS) {
+            for (String os : OS_VERSIONS) {
+                for (String engine : ENGINES) {
+                    for (String browser : BROWSERS) {
+                        for (String version : BROWSER_VERSIONS) {
+                            for (String chromium : CHROMIUM_VERSIONS) {
+                                for (String uc : UC_VERSIONS) {
+                                    assertSameAsBuiltIn(rules, "Mozilla/5.0 " + String.format(platform, os) + engine +
+                                            browser.replace("%v", version).replace("%c", chromium).replace("%u", uc));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The generated user-agents of {@link UserAgentScannerTest} are mostly malformed: tokens in any order,
+     * versions not followed by a space. The bundled rules only differ from the built-in ones there, as
+     * documented in the rules file.
+     */
+    @Test
+    public void testBundledRulesOnGeneratedUserAgents() throws IOException {
+        UserAgentRules rules = bundledRules();
+        assertTrue(rules.isSameSiteNoneIncompatible("Mozilla/5.0 (Linux; Android 9) Chrome/60.0.3112.113"));
+        assertFalse(UserAgentScanner.isSameSiteNoneIncompatible("Mozilla/5.0 (Linux; Android 9) Chrome/60.0.3112.113"));
+
+        Random random = new Random(20191118);
+        int differences = 0;
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int parts = 1 + random.nextInt(12);
+            for (int j = 0; j < parts; j++) {
+                sb.append(UserAgentScannerTest.FRAGMENTS[random.nextInt(UserAgentScannerTest.FRAGMENTS.length)]);
+            }
+            String userAgent = sb.toString();
+            if (UserAgentScanner.isSameSiteNoneIncompatible(userAgent) != rules.isSameSiteNoneIncompatible(userAgent)) {
+                differences++;
+            }
+        }
+        assertTrue(String.valueOf(differences), differences <= DIFFERENCES);
+    }
+
+    private static void assertSameAsBuiltIn(UserAgentRules rules, String userAgent) {
+        assertEquals(userAgent, UserAgentScanner.isSameSiteNoneIncompatible(userAgent),
+                rules.isSameSiteNoneIncompatible(userAgent));
+    }
+
+    private UserAgentRules bundledRules() throws IOException {
+        try (Reader reader = new InputStreamReader(
+                getClass().getResourceAsStream("/same-site-incompatible-clients.rules"), StandardCharsets.UTF_8)) {
+            return UserAgentRules.parse(reader);
+        }
+    }
+
+    @Test
+    public void testConditions() throws IOException {
+        UserAgentRules rules = UserAgentRules.parse(new StringReader(
+                "# comment\n" +
+                "\n" +
+                "overlapping: \"abcd\" \"bc\" !\"cde\"\n" +
+                "versions: \"v/\">=1.2 \"v/\"!=1.5 \"v/\"<2\n" +
+                "anchors: ^\"<\" \">\"$\n" +
+                "negated: \"w/\" !\"w/\">=2.1\n"));
+        assertTrue(rules.isSameSiteNoneIncompatible("xabcdx"));
+        assertFalse(rules.isSameSiteNoneIncompatible("xabcdex"));
+        assertFalse(rules.isSameSiteNoneIncompatible("bc abc"));
+        assertTrue(rules.isSameSiteNoneIncompatible("v/1.2"));
+        assertTrue(rules.isSameSiteNoneIncompatible("v/x v/1_9_9"));
+        assertFalse(rules.isSameSiteNoneIncompatible("v/1.5.3"));
+        assertFalse(rules.isSameSiteNoneIncompatible("v/1.1.9"));
+        assertFalse(rules.isSameSiteNoneIncompatible("v/2"));
+        assertFalse(rules.isSameSiteNoneIncompatible("v/"));
+        assertFalse(rules.isSameSiteNoneIncompatible("v/1"));
+        assertTrue(rules.isSameSiteNoneIncompatible("<a>"));
+        assertFalse(rules.isSameSiteNoneIncompatible("<a> "));
+        assertFalse(rules.isSameSiteNoneIncompatible(" <a>"));
+        assertTrue(rules.isSameSiteNoneIncompatible("w/"));
+        assertTrue(rules.isSameSiteNoneIncompatible("w/2"));
+        assertTrue(rules.isSameSiteNoneIncompatible("w/2.0.9"));
+        assertFalse(rules.isSameSiteNoneIncompatible("w/2.1"));
+    }
+
+    @Test
+    public void testInvalidRules() throws IOException {
+        for (String invalid : new String[] {"no-conditions:", "\"no name\"", "bad: token", "bad: \"v/\">=x",
+                "bad: ^\"v/\">=1", "bad: \"\"", "bad: \"v/\"$>=1"}) {
+            try {
+                UserAgentRules.parse(new StringReader(invalid));
+                fail(invalid);
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testReload() throws IOException {
+        File file = temporaryFolder.newFile("same-site.rules");
+        Files.write(file.toPath(), Collections.singletonList("rule: \"first\""), StandardCharsets.UTF_8);
+        SameSiteLegacyCookieProcessor cookieProcessor = new SameSiteLegacyCookieProcessor();
+        cookieProcessor.setUserAgentRulesCheckInterval(0);
+        cookieProcessor.setUserAgentCacheSize(16);
+        cookieProcessor.setUserAgentRulesFile(file.getAbsolutePath());
+        UserAgentClassifier classifier = cookieProcessor.getUserAgentClassifier();
+        assertTrue(classifier.isSameSiteNoneIncompatible("first"));
+        assertFalse(classifier.isSameSiteNoneIncompatible("second"));
+        assertFalse(classifier.reloadRules());
+
+        Files.write(file.toPath(), Collections.singletonList("rule: \"second\" "), StandardCharsets.UTF_8);
+        assertTrue(classifier.reloadRules());
+        assertFalse(classifier.isSameSiteNoneIncompatible("first"));
+        assertTrue(classifier.isSameSiteNoneIncompatible("second"));
+
+        // Broken file keeps previous rules
+        Files.write(file.toPath(), Collections.singletonList("rule: broken"), StandardCharsets.UTF_8);
+        assertFalse(classifier.reloadRules());
+        assertTrue(classifier.isSameSiteNoneIncompatible("second"));
+    }
+}
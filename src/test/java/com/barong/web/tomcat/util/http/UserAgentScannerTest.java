@@ -0,0 +1,203 @@
+package com.barong.web.tomcat.util.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Compares {@link UserAgentScanner} with the regular expressions it replaces.
+ */
+public class UserAgentScannerTest {
+
+    private static final String[] USER_AGENTS = {
+            "Mozilla/5.0 (iPhone; CPU iPhone OS 12_3_1 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/12.1.1 Mobile/15E148 Safari/604.1",
+            "Mozilla/5.0 (iPhone; CPU iPhone OS 13_3_1 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/12.1.1 Mobile/15E148 Safari/604.1",
+            "Mozilla/5.0 (iPad; CPU OS 12_0 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) CriOS/69.0.3497.105 Mobile/15E148 Safari/605.1",
+            "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_14_5) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/11.1.2 Safari/605.1.15",
+            "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_5) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/11.1.2 Safari/605.1.15",
+            "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_14_6) AppleWebKit/601.7.8 (KHTML, like Gecko)",
+            "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_14_6) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/78.0.3904.108 Safari/537.36",
+            "Mozilla/5.0 (Linux; U; Android 4.4.2; zh-CN; HUAWEI MT7-TL00 Build/HuaweiMT7-TL00) AppleWebKit/537.36 (KHTML, like Gecko) Version/4.0 Chrome/40.0.2214.89 UCBrowser/11.3.8.909 Mobile Safari/537.36",
+            "Mozilla/5.0 (Linux; U; Android 4.4.2; zh-CN; HUAWEI MT7-TL00 Build/HuaweiMT7-TL00) AppleWebKit/537.36 (KHTML, like Gecko) Version/4.0 Chrome/40.0.2214.89 UCBrowser/12.13.2.909 Mobile Safari/537.36",
+            "UCWEB/2.0(Java; U; MIDP-2.0; fr-fr; nokia5530c-2) U2/1.0.0 UCBrowser/8.7.0.218 U2/1.0.0 Mobile UNTRUSTED/1.0 3gpp-gba",
+            "Mozilla/5.0 (X11; Linux i686) AppleWebKit/537.36 (KHTML, like Gecko) Ubuntu Chromium/51.0.2526.73 Chrome/51.0.2526.73 Safari/537.36",
+            "Mozilla/5.0 (X11; Linux i686) AppleWebKit/537.36 (KHTML, like Gecko) Ubuntu Chromium/67.0.2526.73 Chrome/67.0.2526.73 Safari/537.36",
+            "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/538.1 (KHTML, like Gecko) Chromium/31.0.1650.63 Site-Shot/2.1 (http://www.site-shot.com/) Safari/538.1",
+            "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/99999999999.0.1 Safari/537.36",
+            "Mozilla/5.0 (Windows NT 10.0; Win64; x64; rv:78.0) Gecko/20100101 Firefox/78.0",
+            "",
+            // "." does not match line terminators
+            "(iPhone; CPU OS 12\n) AppleWebKit/",
+            "(iPhone; CPU OS 12\u0085) AppleWebKit/",
+            "(iPhone; CPU OS 13\r\n(iPhone; CPU OS 12) AppleWebKit/",
+            "(iPhone; CPU OS 12) AppleWebKit/\u2028(iPhone; CPU OS 13) AppleWebKit/",
+            "Mozilla/5.0 (Macintosh;\u2029 Mac OS X 10_14) AppleWebKit/605 (KHTML, like Gecko)",
+            "(Macintosh; Mac OS X 10_14) AppleWebKit/ Version/\n Safari/",
+    };
+
+    private static final String[] LINE_TERMINATORS = {"\n", "\r", "\u0085", "\u2028", "\u2029"};
+
+    static final String[] FRAGMENTS = {
+            "(iP", "(iPhone; ", "; CPU ", "OS ", "OS 12", "OS 012", "OS 12_", "_3", "(Macintosh;", "Mac OS X ",
+            "Mac OS X 10_14", "Mac OS X 10_", ") AppleWebKit/", "605.1.15", " (KHTML, like Gecko)",
+            "Mozilla/5.0", "Version/", " Safari/", "Chrome/", "Chromium/", "Chrom", "CriOS/", "UCBrowser/",
+            "12.13.2", "11.3.8", "12.14", "51", "66", "67", "0", "9", ".", "_", " ", "/", ")", "(", ";", "x",
+    };
+
+    @Test
+    public void testKnownUserAgents() {
+        for (String userAgent : USER_AGENTS) {
+            assertSameAsRegex(userAgent);
+        }
+    }
+
+    @Test
+    public void testGeneratedUserAgents() {
+        Random random = new Random(20191118);
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int parts = 1 + random.nextInt(12);
+            for (int j = 0; j < parts; j++) {
+                sb.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            }
+            assertSameAsRegex(sb.toString());
+        }
+    }
+
+    @Test
+    public void testGeneratedUserAgentsWithLineTerminators() {
+        Random random = new Random(20191119);
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int parts = 1 + random.nextInt(16);
+            for (int j = 0; j < parts; j++) {
+                if (random.nextInt(8) == 0) {
+                    sb.append(LINE_TERMINATORS[random.nextInt(LINE_TERMINATORS.length)]);
+                } else {
+                    sb.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+                }
+            }
+            assertSameAsRegex(sb.toString());
+        }
+    }
+
+    @Test
+    public void testCanonicalKey() {
+        String first = "Mozilla/5.0 (Linux; U; Android 4.4.2; zh-CN; HUAWEI MT7-TL00 Build/HuaweiMT7-TL00) AppleWebKit/537.36 (KHTML, like Gecko) Version/4.0 Chrome/40.0.2214.89 UCBrowser/11.3.8.909 Mobile Safari/537.36";
+        String second = "Mozilla/5.0 (Linux; U; Android 9; en-US; SM-G960F Build/PPR1.180610.011) AppleWebKit/537.36 (KHTML, like Gecko) Version/4.0 Chrome/40.0.2311.10 UCBrowser/11.3.8.1127 Mobile Safari/537.36";
+        assertEquals(UserAgentScanner.canonicalKey(first), UserAgentScanner.canonicalKey(second));
+        String third = "Mozilla/5.0 (Linux; U; Android 9; en-US; SM-G960F Build/PPR1.180610.011) AppleWebKit/537.36 (KHTML, like Gecko) Version/4.0 Chrome/40.0.2311.10 UCBrowser/11.3.9.1127 Mobile Safari/537.36";
+        assertNotEquals(UserAgentScanner.canonicalKey(first), UserAgentScanner.canonicalKey(third));
+        String chrome = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/84.0.4147.105 Safari/537.36";
+        String chromeOtherBuild = "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/84.0.4147.89 Safari/537.36";
+        assertEquals(UserAgentScanner.canonicalKey(chrome), UserAgentScanner.canonicalKey(chromeOtherBuild));
+    }
+
+    private static void assertSameAsRegex(String userAgent) {
+        List<String> failures = new ArrayList<>();
+        check(failures, "isIosVersion", regexIsIosVersion(12, userAgent), UserAgentScanner.isIosVersion(12, userAgent));
+        check(failures, "isMacosxVersion", regexIsMacosxVersion(10, 14, userAgent),
+                UserAgentScanner.isMacosxVersion(10, 14, userAgent));
+        check(failures, "isSafari", regexIsSafari(userAgent), UserAgentScanner.isSafari(userAgent));
+        check(failures, "isMacEmbeddedBrowser", regexIsMacEmbeddedBrowser(userAgent),
+                UserAgentScanner.isMacEmbeddedBrowser(userAgent));
+        check(failures, "isChromiumBased", regexIsChromiumBased(userAgent), UserAgentScanner.isChromiumBased(userAgent));
+        check(failures, "isChromiumVersionAtLeast", regexIsChromiumVersionAtLeast(51, userAgent),
+                UserAgentScanner.isChromiumVersionAtLeast(51, userAgent));
+        check(failures, "isUcBrowser", regexIsUcBrowser(userAgent), UserAgentScanner.isUcBrowser(userAgent));
+        check(failures, "isUcBrowserVersionAtLeast", regexIsUcBrowserVersionAtLeast(12, 13, 2, userAgent),
+                UserAgentScanner.isUcBrowserVersionAtLeast(12, 13, 2, userAgent));
+        check(failures, "isSameSiteNoneIncompatible", regexIsSameSiteNoneIncompatible(userAgent),
+                UserAgentScanner.isSameSiteNoneIncompatible(userAgent));
+        assertEquals(userAgent, "[]", failures.toString());
+    }
+
+    private static void check(List<String> failures, String name, boolean expected, boolean actual) {
+        if (expected != actual) {
+            failures.add(name);
+        }
+    }
+
+    private static boolean regexIsSameSiteNoneIncompatible(String userAgent) {
+        boolean webKitBug = regexIsIosVersion(12, userAgent) ||
+                (regexIsMacosxVersion(10, 14, userAgent) &&
+                        (regexIsSafari(userAgent) || regexIsMacEmbeddedBrowser(userAgent)));
+        if (webKitBug) {
+            return true;
+        }
+        if (regexIsUcBrowser(userAgent)) {
+            return !regexIsUcBrowserVersionAtLeast(12, 13, 2, userAgent);
+        }
+        return regexIsChromiumBased(userAgent) &&
+                regexIsChromiumVersionAtLeast(51, userAgent) &&
+                !regexIsChromiumVersionAtLeast(67, userAgent);
+    }
+
+    private static boolean regexIsIosVersion(int major, String userAgent) {
+        Matcher matcher = Pattern.compile("\\(iP.+; CPU .*OS (\\d+)[_\\d]*.*\\) AppleWebKit/").matcher(userAgent);
+        return matcher.find() && matcher.group(1).equals(String.valueOf(major));
+    }
+
+    private static boolean regexIsMacosxVersion(int major, int minor, String userAgent) {
+        Matcher matcher = Pattern.compile("\\(Macintosh;.*Mac OS X (\\d+)_(\\d+)[_\\d]*.*\\) AppleWebKit/")
+                .matcher(userAgent);
+        return matcher.find() && matcher.group(1).equals(String.valueOf(major)) &&
+                matcher.group(2).equals(String.valueOf(minor));
+    }
+
+    private static boolean regexIsSafari(String userAgent) {
+        return Pattern.compile("Version/.* Safari/").matcher(userAgent).find() && !regexIsChromiumBased(userAgent);
+    }
+
+    private static boolean regexIsMacEmbeddedBrowser(String userAgent) {
+        return userAgent.matches("^Mozilla/[.\\d]+ \\(Macintosh;.*Mac OS X [_\\d]+\\) "
+                + "AppleWebKit/[.\\d]+ \\(KHTML, like Gecko\\)$");
+    }
+
+    private static boolean regexIsChromiumBased(String userAgent) {
+        return Pattern.compile("Chrom(e|ium)").matcher(userAgent).find();
+    }
+
+    private static boolean regexIsChromiumVersionAtLeast(int major, String userAgent) {
+        Matcher matcher = Pattern.compile("Chrom[^ /]+/(\\d+)[.\\d]* ").matcher(userAgent);
+        if (matcher.find()) {
+            try {
+                return Integer.parseInt(matcher.group(1)) >= major;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static boolean regexIsUcBrowser(String userAgent) {
+        return Pattern.compile("UCBrowser/").matcher(userAgent).find();
+    }
+
+    private static boolean regexIsUcBrowserVersionAtLeast(int major, int minor, int build, String userAgent) {
+        Matcher matcher = Pattern.compile("UCBrowser/(\\d+)\\.(\\d+)\\.(\\d+)[.\\d]* ").matcher(userAgent);
+        if (matcher.find()) {
+            try {
+                int majorVersion = Integer.parseInt(matcher.group(1));
+                if (majorVersion != major) {
+                    return majorVersion > major;
+                }
+                int minorVersion = Integer.parseInt(matcher.group(2));
+                if (minorVersion != minor) {
+                    return minorVersion > minor;
+                }
+                return Integer.parseInt(matcher.group(3)) >= build;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+}
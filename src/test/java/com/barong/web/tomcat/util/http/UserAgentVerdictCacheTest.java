@@ -0,0 +1,78 @@
+package com.barong.web.tomcat.util.http;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UserAgentVerdictCacheTest {
+
+    @Test
+    public void testGetPut() {
+        UserAgentVerdictCache cache = new UserAgentVerdictCache(16);
+        assertNull(cache.get(hash("a")));
+        cache.put(hash("a"), true);
+        cache.put(hash("b"), false);
+        assertEquals(Boolean.TRUE, cache.get(hash("a")));
+        assertEquals(Boolean.FALSE, cache.get(hash("b")));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testHotEntriesSurviveFlood() {
+        UserAgentVerdictCache cache = new UserAgentVerdictCache(256);
+        for (int i = 0; i < 100000; i++) {
+            // Hot user-agents keep coming while a scraper sends a new one on each request
+            String userAgent = i % 4 == 0 ? "hot-" + (i / 4) % 64 : "scraper-" + i;
+            if (cache.get(hash(userAgent)) == null) {
+                cache.put(hash(userAgent), userAgent.startsWith("scraper"));
+            }
+        }
+        int hot = 0;
+        for (int i = 0; i < 64; i++) {
+            if (cache.get(hash("hot-" + i)) != null) {
+                hot++;
+            }
+        }
+        assertTrue("hot entries left: " + hot, hot >= 60);
+    }
+
+    @Test
+    public void testProcessorAttribute() {
+        SameSiteLegacyCookieProcessor cookieProcessor = new SameSiteLegacyCookieProcessor();
+        assertEquals(0, cookieProcessor.getUserAgentCacheSize());
+        cookieProcessor.setUserAgentCacheSize(1000);
+        assertEquals(1024, cookieProcessor.getUserAgentCacheSize());
+        String userAgent = "Mozilla/5.0 (iPhone; CPU iPhone OS 12_3_1 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/12.1.1 Mobile/15E148 Safari/604.1";
+        assertTrue(cookieProcessor.getUserAgentClassifier().isSameSiteNoneIncompatible(userAgent));
+        assertTrue(cookieProcessor.getUserAgentClassifier().isSameSiteNoneIncompatible(userAgent));
+        assertEquals(1, cookieProcessor.getUserAgentCacheMissCount());
+        assertEquals(1, cookieProcessor.getUserAgentCacheHitCount());
+
+        // Header bytes share the cache entry of the equal String
+        MessageBytes bytes = MessageBytes.newInstance();
+        byte[] b = userAgent.getBytes(StandardCharsets.ISO_8859_1);
+        bytes.setBytes(b, 0, b.length);
+        assertTrue(cookieProcessor.getUserAgentClassifier().isSameSiteNoneIncompatible(bytes));
+        assertEquals(2, cookieProcessor.getUserAgentCacheHitCount());
+        assertEquals(MessageBytes.T_BYTES, bytes.getType());
+    }
+
+    @Test
+    public void testHash() {
+        String userAgent = "Mozilla/5.0 (X11; Linux x86_64; rv:78.0) Gecko/20100101 Firefox/78.0";
+        byte[] b = ("xx" + userAgent).getBytes(StandardCharsets.ISO_8859_1);
+        assertEquals(UserAgentHash.hash(userAgent), UserAgentHash.hash(b, 2, b.length - 2));
+        assertNotEquals(UserAgentHash.hash(userAgent), UserAgentHash.hash(userAgent + " "));
+    }
+
+    private static long hash(String userAgent) {
+        return UserAgentHash.hash(userAgent);
+    }
+}